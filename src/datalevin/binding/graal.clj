@@ -9,6 +9,7 @@
                                  IRtx IDB IKV IList ILMDB IWriting]]
    [clojure.stacktrace :as st])
   (:import
+   [datalevin.lmdb RtxPool ReadSnapshot]
    [java.util Iterator]
    [java.util.concurrent ConcurrentHashMap ConcurrentLinkedQueue]
    [java.nio ByteBuffer BufferOverflowException]
@@ -412,21 +413,58 @@
                       (.del dbi txn false)))
         (raise "Unknown kv operator: " op {})))))
 
-(declare reset-write-txn ->LMDB)
+(defn- env-size
+  "Return the map size, the used size and the page size of the env in bytes"
+  [^Env env]
+  (let [^Info info (Info/create env)
+        ^Stat stat (Stat/create env)]
+    (try
+      (let [ei    ^Lib$MDB_envinfo (.get info)
+            psize (.ms_psize ^Lib$MDB_stat (.get stat))]
+        [(.me_mapsize ei) (* (inc (.me_last_pgno ei)) psize) psize])
+      (finally
+        (.close info)
+        (.close stat)))))
+
+(defn- up-db-size
+  "Grow the map once by the `growth` policy, as it is full"
+  [^Env env growth]
+  (let [[size _ psize] (env-size env)]
+    (.setMapSize env (l/grow-size growth size psize))))
+
+(defn- ensure-db-size
+  "Grow the map by the `growth` policy ahead of a write transaction of `n` kv
+  ops, if it would be short of free space otherwise"
+  [^Env env growth ^long n]
+  (let [[size used psize] (env-size env)]
+    (when-let [new-size (l/ensure-size growth size used psize
+                                       (* n ^long c/+kv-op-bytes+))]
+      (.setMapSize env new-size))))
+
+(defn- load-batch
+  [^DBI dbi txn kvs kt vt flags]
+  (doseq [[k v] kvs]
+    (.put-key dbi k kt)
+    (.put-val dbi v vt)
+    (.put dbi txn flags)))
+
+(declare reset-write-txn ->LMDB load* transact-one transact-batch)
 
 (deftype LMDB [^Env env
                ^String dir
                temp?
                opts
-               ^ConcurrentLinkedQueue pool
+               ^RtxPool pool
                ^ConcurrentHashMap dbis
                ^:volatile-mutable closed?
                ^BufVal kp-w
                ^BufVal vp-w
                ^BufVal start-kp-w
                ^BufVal stop-kp-w
+               group-commit
                write-txn
-               writing?]
+               writing?
+               snapshot]
 
   IWriting
   (writing? [_] writing?)
@@ -436,16 +474,12 @@
   (mark-write [_]
     (->LMDB
       env dir temp? opts pool dbis closed? kp-w vp-w start-kp-w stop-kp-w
-      write-txn true))
+      group-commit write-txn true nil))
 
   ILMDB
   (close-kv [_]
     (when-not closed?
-      (loop [^Iterator iter (.iterator pool)]
-        (when (.hasNext iter)
-          (.close-rtx ^Rtx (.next iter))
-          (.remove iter)
-          (recur iter)))
+      (doseq [^Rtx rtx (l/drain-rtxs pool)] (.close-rtx rtx))
       (doseq [^DBI dbi (.values dbis)]
         (loop [^Iterator iter (.iterator ^ConcurrentLinkedQueue (.-curs dbi))]
           (when (.hasNext iter)
@@ -515,15 +549,16 @@
 
   (get-rtx [this]
     (try
-      (or (when-let [^Rtx rtx (.poll pool)]
-            (.renew rtx))
-          (Rtx. this
-                (Txn/createReadOnly env)
-                (BufVal/create c/+max-key-size+)
-                (BufVal/create 1)
-                (BufVal/create c/+max-key-size+)
-                (BufVal/create c/+max-key-size+)
-                (volatile! false)))
+      (if snapshot
+        (l/snapshot-rtx snapshot)
+        (l/acquire-rtx pool
+                       #(Rtx. this
+                              (Txn/createReadOnly env)
+                              (BufVal/create c/+max-key-size+)
+                              (BufVal/create 1)
+                              (BufVal/create c/+max-key-size+)
+                              (BufVal/create c/+max-key-size+)
+                              (volatile! false))))
       (catch Lib$BadReaderLockException _
         (raise
           "Please do not open multiple LMDB connections to the same DB
@@ -532,8 +567,34 @@
            `datalevin.core/open-kv` for more details." {}))))
 
   (return-rtx [this rtx]
-    (.reset ^Rtx rtx)
-    (.add pool rtx))
+    (if snapshot
+      (l/return-snapshot-rtx snapshot rtx)
+      (l/release-rtx pool rtx)))
+
+  (open-read-snapshot [this]
+    (assert (not closed?) "LMDB env is closed.")
+    (if (or writing? snapshot)
+      this
+      (->LMDB env dir temp? opts pool dbis closed? kp-w vp-w start-kp-w
+              stop-kp-w group-commit write-txn false
+              (l/read-snapshot (.get-rtx this)
+                               #(Rtx. this
+                                      (.-txn ^Rtx %)
+                                      (BufVal/create c/+max-key-size+)
+                                      (BufVal/create 1)
+                                      (BufVal/create c/+max-key-size+)
+                                      (BufVal/create c/+max-key-size+)
+                                      (volatile! false))))))
+
+  (close-read-snapshot [_]
+    (when snapshot
+      ;; the siblings share the pinned txn, only their buffers are freed
+      (doseq [^Rtx rtx (.-siblings ^ReadSnapshot snapshot)]
+        (.close ^BufVal (.-kp rtx))
+        (.close ^BufVal (.-vp rtx))
+        (.close ^BufVal (.-start-kp rtx))
+        (.close ^BufVal (.-stop-kp rtx)))
+      (l/release-rtx pool (.-rtx ^ReadSnapshot snapshot))))
 
   (list-dbis [this]
     (assert (not closed?) "LMDB env is closed.")
@@ -573,9 +634,14 @@
     (assert (not closed?) "LMDB env is closed.")
     (try
       (let [stat ^Stat (Stat/create env)
-            m    (stat-map stat)]
+            m    (stat-map stat)
+            info ^Info (Info/create env)
+            ei   ^Lib$MDB_envinfo (.get info)
+            rs   (l/rtx-pool-stats pool (.me_numreaders ei)
+                                   (.me_maxreaders ei))]
         (.close stat)
-        m)
+        (.close info)
+        (assoc m :readers rs))
       (catch Exception e
         (raise "Fail to get statistics: " (ex-message e) {}))))
   (stat [this dbi-name]
@@ -642,27 +708,16 @@
 
   (transact-kv [this txs]
     (assert (not closed?) "LMDB env is closed.")
-    (locking write-txn
-      (let [^Rtx rtx  @write-txn
-            one-shot? (nil? rtx)
-            ^Txn txn  (if one-shot? (Txn/create env) (.-txn rtx))]
-        (try
-          (transact* txs dbis txn)
-          (when one-shot? (.commit txn))
-          :transacted
-          (catch Lib$MapFullException _
-            (.close txn)
-            (let [^Info info (Info/create env)]
-              (.setMapSize env (* ^long c/+buffer-grow-factor+
-                                  (.me_mapsize ^Lib$MDB_envinfo (.get info))))
-              (.close info))
-            (if one-shot?
-              (.transact-kv this txs)
-              (do (reset-write-txn this)
-                  (raise "DB needs resize" {:resized true}))))
-          (catch Exception e
-            (when one-shot? (.close txn))
-            (raise "Fail to transact to LMDB: " (ex-message e) {}))))))
+    ;; calls in an explicit read/write transaction are not grouped
+    (if (and group-commit (not writing?) (nil? @write-txn))
+      (l/group-commit group-commit write-txn
+                      #(transact-batch this %) #(transact-one this %) txs)
+      (transact-one this txs)))
+
+  (load-kv [this dbi-name kvs]
+    (.load-kv this dbi-name kvs :data :data))
+  (load-kv [this dbi-name kvs k-type v-type]
+    (load* this dbi-name kvs k-type v-type [:append]))
 
   (get-value [this dbi-name k]
     (.get-value this dbi-name k :data :data true))
@@ -760,6 +815,9 @@
       (catch Exception e
         (raise "Fail to put an inverted list: " (ex-message e) {}))))
 
+  (load-list-items [this dbi-name kvs kt vt]
+    (load* this dbi-name kvs kt vt [:appenddup]))
+
   (del-list-items [this dbi-name k kt]
     (try
       (let [^DBI dbi (.get-dbi this dbi-name false)
@@ -955,11 +1013,105 @@
                    (.return-cursor dbi cur))))
       false)))
 
+(defn- transact-one
+  [^LMDB lmdb txs]
+  (let [write-txn (.-write-txn lmdb)
+        ^Env env  (.-env lmdb)
+        growth    (:map-growth (.-opts lmdb))]
+    (locking write-txn
+      (let [^Rtx rtx  @write-txn
+            one-shot? (nil? rtx)
+            ^Txn txn  (if one-shot?
+                        (do (ensure-db-size env growth (count txs))
+                            (Txn/create env))
+                        (.-txn rtx))]
+        (try
+          (transact* txs (.-dbis lmdb) txn)
+          (when one-shot? (.commit txn))
+          :transacted
+          (catch Lib$MapFullException _
+            (.close txn)
+            (up-db-size env growth)
+            (if one-shot?
+              (transact-one lmdb txs)
+              (do (reset-write-txn lmdb)
+                  (raise "DB needs resize" {:resized true}))))
+          (catch Exception e
+            (when one-shot? (.close txn))
+            (raise "Fail to transact to LMDB: " (ex-message e) {})))))))
+
+(defn- transact-batch
+  "Commit the txs of several `transact-kv` calls in one write transaction"
+  [^LMDB lmdb txs-list]
+  (let [dbis     (.-dbis lmdb)
+        ^Env env (.-env lmdb)
+        growth   (:map-growth (.-opts lmdb))]
+    (ensure-db-size env growth (reduce + (map count txs-list)))
+    (loop []
+      (when (= :resized
+               (let [txn (Txn/create env)]
+                 (try
+                   (doseq [txs txs-list] (transact* txs dbis txn))
+                   (.commit txn)
+                   (catch Lib$MapFullException _
+                     (.close txn)
+                     (up-db-size env growth)
+                     :resized)
+                   (catch Exception e
+                     (.close txn)
+                     (throw e)))))
+        (recur)))))
+
+(defn- load*
+  "Append the sorted kvs to a DBI, with `flags` being `[:append]` for a plain
+  DBI, or `[:appenddup]` for a list DBI. The kvs are committed in batches
+  unless there is an open read/write transaction, and a batch is retried
+  after the DB is resized."
+  [lmdb dbi-name kvs kt vt flags]
+  (assert (not (l/closed-kv? lmdb)) "LMDB env is closed.")
+  (let [^DBI dbi  (l/get-dbi lmdb dbi-name false)
+        ^Env env  (.-env ^LMDB lmdb)
+        growth    (:map-growth (.-opts ^LMDB lmdb))
+        write-txn (l/write-txn lmdb)]
+    (locking write-txn
+      (try
+        (if-let [^Rtx rtx @write-txn]
+          (try
+            (load-batch dbi (.-txn rtx) kvs kt vt flags)
+            (catch Lib$MapFullException _
+              (.close ^Txn (.-txn rtx))
+              (up-db-size env growth)
+              (reset-write-txn lmdb)
+              (raise "DB needs resize" {:resized true})))
+          (doseq [batch (partition-all c/+load-batch-size+ kvs)]
+            (ensure-db-size env growth (count batch))
+            (loop []
+              (when (= :resized
+                       (let [txn (Txn/create env)]
+                         (try
+                           (load-batch dbi txn batch kt vt flags)
+                           (.commit txn)
+                           (catch Lib$MapFullException _
+                             (.close txn)
+                             (up-db-size env growth)
+                             :resized)
+                           (catch Exception e
+                             (.close txn)
+                             (throw e)))))
+                (recur)))))
+        :transacted
+        (catch Exception e
+          (if (:resized (ex-data e))
+            (throw e)
+            (raise "Fail to load to LMDB, the data may not be sorted: "
+                   (ex-message e) {:dbi dbi-name})))))))
+
 (defn- reset-write-txn
   [^LMDB lmdb]
   (let [kp-w       ^BufVal (.-kp-w lmdb)
         start-kp-w ^BufVal (.-start-kp-w lmdb)
         stop-kp-w  ^BufVal (.-stop-kp-w lmdb)]
+    (ensure-db-size (.-env lmdb) (:map-growth (.-opts lmdb)) 0)
     (.clear kp-w)
     (.clear start-kp-w)
     (.clear stop-kp-w)
@@ -974,13 +1126,14 @@
 (defmethod open-kv :graal
   ([dir]
    (open-kv dir {}))
-  ([dir {:keys [mapsize flags temp?]
+  ([dir {:keys [mapsize flags temp? group-commit thread-rtx? map-growth]
          :or   {mapsize c/+init-db-size+
                 flags   c/default-env-flags
                 temp?   false}
          :as   opts}]
    (try
-     (let [file     (u/file dir)
+     (let [opts     (assoc opts :map-growth (l/map-growth map-growth))
+           file     (u/file dir)
            ^Env env (Env/create
                       dir
                       (* ^long mapsize 1024 1024)
@@ -991,15 +1144,17 @@
                             dir
                             temp?
                             opts
-                            (ConcurrentLinkedQueue.)
+                            (l/rtx-pool (when thread-rtx? c/+max-thread-rtxs+))
                             (ConcurrentHashMap.)
                             false
                             (BufVal/create c/+max-key-size+)
                             (BufVal/create 1)
                             (BufVal/create c/+max-key-size+)
                             (BufVal/create c/+max-key-size+)
+                            (l/commit-queue group-commit)
                             (volatile! nil)
-                            false)]
+                            false
+                            nil)]
        (when temp? (u/delete-on-exit file))
        lmdb)
      (catch Exception e
@@ -11,9 +11,11 @@
    [clojure.java.io :as io]
    [clojure.string :as s])
   (:import
-   [org.lmdbjava Env EnvFlags Env$MapFullException Stat Dbi DbiFlags
-    PutFlags Txn TxnFlags KeyRange Txn$BadReaderLockException CopyFlags
-    Cursor CursorIterable$KeyVal GetOp SeekOp]
+   [datalevin.lmdb RtxPool ReadSnapshot]
+   [org.lmdbjava Env EnvFlags EnvInfo Env$MapFullException Stat Dbi DbiFlags
+    PutFlags Txn TxnFlags Txn$BadReaderLockException CopyFlags
+    Cursor GetOp SeekOp]
+   [datalevin.utl BufOps]
    [java.util.concurrent ConcurrentLinkedQueue]
    [java.util Iterator UUID]
    [java.io File InputStream OutputStream]
@@ -22,11 +24,6 @@
    [org.eclipse.collections.impl.map.mutable UnifiedMap]
    [java.nio ByteBuffer BufferOverflowException]))
 
-(extend-protocol IKV
-  CursorIterable$KeyVal
-  (k [this] (.key ^CursorIterable$KeyVal this))
-  (v [this] (.val ^CursorIterable$KeyVal this)))
-
 (defn- flag
   [flag-key]
   (case flag-key
@@ -100,28 +97,47 @@
     (raise "put-val not allowed for read only txn buffer" {}))
 
   IRange
-  (range-info [this range-type _ _]
-    (let [kb1 (.-start-kb this)
-          kb2 (.-stop-kb this)]
+  (range-info [this range-type k1 k2]
+    (let [chk1 #(if k1
+                  %1
+                  (raise "Missing start/end key for range type " %2 {}))
+          chk2 #(if (and k1 k2)
+                  %1
+                  (raise "Missing start/end key for range type " %2 {}))
+          kb1  (.-start-kb this)
+          kb2  (.-stop-kb this)]
       (case range-type
-        :all               (KeyRange/all)
-        :all-back          (KeyRange/allBackward)
-        :at-least          (KeyRange/atLeast kb1)
-        :at-most-back      (KeyRange/atLeastBackward kb1)
-        :at-most           (KeyRange/atMost kb1)
-        :at-least-back     (KeyRange/atMostBackward kb1)
-        :closed            (KeyRange/closed kb1 kb2)
-        :closed-back       (KeyRange/closedBackward kb1 kb2)
-        :closed-open       (KeyRange/closedOpen kb1 kb2)
-        :closed-open-back  (KeyRange/closedOpenBackward kb1 kb2)
-        :greater-than      (KeyRange/greaterThan kb1)
-        :less-than-back    (KeyRange/greaterThanBackward kb1)
-        :less-than         (KeyRange/lessThan kb1)
-        :greater-than-back (KeyRange/lessThanBackward kb1)
-        :open              (KeyRange/open kb1 kb2)
-        :open-back         (KeyRange/openBackward kb1 kb2)
-        :open-closed       (KeyRange/openClosed kb1 kb2)
-        :open-closed-back  (KeyRange/openClosedBackward kb1 kb2))))
+        :all               [true false false false false nil nil]
+        :all-back          [false false false false false nil nil]
+        :at-least          (chk1 [true true true false false kb1 nil] :at-least)
+        :at-most-back      (chk1 [false true true false false kb1 nil]
+                                 :at-most-back)
+        :at-most           (chk1 [true false false true true nil kb1] :at-most)
+        :at-least-back     (chk1 [false false false true true nil kb1]
+                                 :at-least-back)
+        :closed            (chk2 [true true true true true kb1 kb2] :closed)
+        :closed-back       (chk2 [false true true true true kb1 kb2]
+                                 :closed-back)
+        :closed-open       (chk2 [true true true true false kb1 kb2]
+                                 :closed-open)
+        :closed-open-back  (chk2 [false true true true false kb1 kb2]
+                                 :closed-open-back)
+        :greater-than      (chk1 [true true false false false kb1 nil]
+                                 :greater-than)
+        :less-than-back    (chk1 [false true false false false kb1 nil]
+                                 :less-than-back)
+        :less-than         (chk1 [true false false true false nil kb1]
+                                 :less-than)
+        :greater-than-back (chk1 [false false false true false nil kb1]
+                                 :greater-than-back)
+        :open              (chk2 [true true false true false kb1 kb2] :open)
+        :open-back         (chk2 [false true false true false kb1 kb2]
+                                 :open-back)
+        :open-closed       (chk2 [true true false true true kb1 kb2]
+                                 :open-closed)
+        :open-closed-back  (chk2 [false true false true true kb1 kb2]
+                                 :open-closed-back)
+        (raise "Unknown range type" range-type {}))))
   (put-start-key [_ x t]
     (when x
       (try
@@ -165,6 +181,8 @@
    :overflow-pages (.-overflowPages stat)
    :entries        (.-entries stat)})
 
+(declare ->CursorIterable)
+
 (deftype DBI [^Dbi db
               ^ConcurrentLinkedQueue curs
               ^ByteBuffer kb
@@ -222,8 +240,10 @@
   (get-kv [_ rtx]
     (let [^ByteBuffer kb (.-kb ^Rtx rtx)]
       (.get db (.-txn ^Rtx rtx) kb)))
-  (iterate-kv [_ rtx range-info]
-    (.iterate db (.-txn ^Rtx rtx) range-info))
+  (iterate-kv [this rtx [f? sk? is? ek? ie? sk ek]]
+    (let [txn (.-txn ^Rtx rtx)
+          cur (.get-cursor this txn)]
+      (->CursorIterable cur this rtx f? sk? is? ek? ie? sk ek)))
   (get-cursor [_ txn]
     (or (when (.isReadOnly ^Txn txn)
           (when-let [^Cursor cur (.poll curs)]
@@ -235,9 +255,94 @@
   (return-cursor [_ cur]
     (.add curs cur)))
 
-(defn- up-db-size [^Env env]
-  (.setMapSize env
-               (* ^long c/+buffer-grow-factor+ ^long (-> env .info .mapSize))))
+(deftype CursorIterable [^Cursor cursor
+                         ^DBI db
+                         ^Rtx rtx
+                         forward?
+                         start-key?
+                         include-start?
+                         stop-key?
+                         include-stop?
+                         ^ByteBuffer sk
+                         ^ByteBuffer ek]
+  AutoCloseable
+  (close [_]
+    (if (.isReadOnly ^Txn (.-txn rtx))
+      (.return-cursor db cursor)
+      (.close cursor)))
+
+  Iterable
+  (iterator [_]
+    (let [started?  (volatile! false)
+          ended?    (volatile! false)
+          kv        (reify IKV
+                      (k [_] (.key cursor))
+                      (v [_] (.val cursor)))
+          end       #(do (vreset! ended? true) false)
+          continue? #(if stop-key?
+                       (let [r (BufOps/compareByteBuf (.key cursor) ek)]
+                         (if (= r 0)
+                           (do (vreset! ended? true)
+                               include-stop?)
+                           (if (> r 0)
+                             (if forward? (end) true)
+                             (if forward? true (end)))))
+                       true)
+          check     #(if (.seek cursor %)
+                       (continue?)
+                       false)]
+      (reify
+        Iterator
+        (hasNext [_]
+          (if @ended?
+            false
+            (if @started?
+              (if forward?
+                (check SeekOp/MDB_NEXT)
+                (check SeekOp/MDB_PREV))
+              (do
+                (vreset! started? true)
+                (if start-key?
+                  (if (.get cursor sk GetOp/MDB_SET_RANGE)
+                    (if (and include-start?
+                             (or forward?
+                                 (= 0 (BufOps/compareByteBuf
+                                        (.key cursor) sk))))
+                      (continue?)
+                      (if forward?
+                        (if (= 0 (BufOps/compareByteBuf (.key cursor) sk))
+                          (check SeekOp/MDB_NEXT)
+                          (continue?))
+                        (check SeekOp/MDB_PREV)))
+                    (if forward?
+                      false
+                      (check SeekOp/MDB_LAST)))
+                  (if forward?
+                    (check SeekOp/MDB_FIRST)
+                    (check SeekOp/MDB_LAST)))))))
+        (next [_] kv)))))
+
+(defn- env-size
+  "Return the map size, the used size and the page size of the env in bytes"
+  [^Env env]
+  (let [^EnvInfo info (.info env)
+        psize         (.-pageSize ^Stat (.stat env))]
+    [(.-mapSize info) (* (inc (.-lastPageNumber info)) psize) psize]))
+
+(defn- up-db-size
+  "Grow the map once by the `growth` policy, as it is full"
+  [^Env env growth]
+  (let [[size _ psize] (env-size env)]
+    (.setMapSize env (l/grow-size growth size psize))))
+
+(defn- ensure-db-size
+  "Grow the map by the `growth` policy ahead of a write transaction of `n` kv
+  ops, if it would be short of free space otherwise"
+  [^Env env growth ^long n]
+  (let [[size used psize] (env-size env)]
+    (when-let [new-size (l/ensure-size growth size used psize
+                                       (* n ^long c/+kv-op-bytes+))]
+      (.setMapSize env new-size))))
 
 (defn- transact*
   [txs ^UnifiedMap dbis txn]
@@ -277,19 +382,28 @@
                       (.del dbi txn false)))
         (raise "Unknown kv operator: " op {})))))
 
-(declare ->LMDB reset-write-txn)
+(defn- load-batch
+  [^DBI dbi txn kvs kt vt flags]
+  (doseq [[k v] kvs]
+    (.put-key dbi k kt)
+    (.put-val dbi v vt)
+    (.put dbi txn flags)))
+
+(declare ->LMDB reset-write-txn load* transact-one transact-batch)
 
 (deftype LMDB [^Env env
                ^String dir
                temp?
                opts
-               ^ConcurrentLinkedQueue pool
+               ^RtxPool pool
                ^UnifiedMap dbis
                ^ByteBuffer kb-w
                ^ByteBuffer start-kb-w
                ^ByteBuffer stop-kb-w
+               group-commit
                write-txn
-               writing?]
+               writing?
+               snapshot]
   IWriting
   (writing? [_] writing?)
 
@@ -297,16 +411,19 @@
 
   (mark-write [_]
     (->LMDB
-      env dir temp? opts pool dbis kb-w start-kb-w stop-kb-w write-txn true))
+      env dir temp? opts pool dbis kb-w start-kb-w stop-kb-w group-commit
+      write-txn true nil))
 
   ILMDB
   (close-kv [_]
     (when-not (.isClosed env)
-      (loop [^Iterator iter (.iterator pool)]
-        (when (.hasNext iter)
-          (.close-rtx ^Rtx (.next iter))
-          (.remove iter)
-          (recur iter)))
+      (doseq [^Rtx rtx (l/drain-rtxs pool)] (.close-rtx rtx))
+      (doseq [^DBI dbi (.values dbis)]
+        (loop [^Iterator iter (.iterator ^ConcurrentLinkedQueue (.-curs dbi))]
+          (when (.hasNext iter)
+            (.close ^Cursor (.next iter))
+            (.remove iter)
+            (recur iter))))
       (.sync env true)
       (.close env))
     (when temp? (u/delete-files dir))
@@ -385,14 +502,15 @@
 
   (get-rtx [this]
     (try
-      (or (when-let [^Rtx rtx (.poll pool)]
-            (.renew rtx))
-          (->Rtx this
-                 (.txnRead env)
-                 (b/allocate-buffer c/+max-key-size+)
-                 (b/allocate-buffer c/+max-key-size+)
-                 (b/allocate-buffer c/+max-key-size+)
-                 (volatile! false)))
+      (if snapshot
+        (l/snapshot-rtx snapshot)
+        (l/acquire-rtx pool
+                       #(->Rtx this
+                               (.txnRead env)
+                               (b/allocate-buffer c/+max-key-size+)
+                               (b/allocate-buffer c/+max-key-size+)
+                               (b/allocate-buffer c/+max-key-size+)
+                               (volatile! false))))
       (catch Txn$BadReaderLockException _
         (raise
           "Please do not open multiple LMDB connections to the same DB
@@ -401,13 +519,35 @@
            `datalevin.core/open-kv` for more details." {}))))
 
   (return-rtx [this rtx]
-    (.reset ^Rtx rtx)
-    (.add pool rtx))
+    (if snapshot
+      (l/return-snapshot-rtx snapshot rtx)
+      (l/release-rtx pool rtx)))
+
+  (open-read-snapshot [this]
+    (assert (not (.closed-kv? this)) "LMDB env is closed.")
+    (if (or writing? snapshot)
+      this
+      (->LMDB env dir temp? opts pool dbis kb-w start-kb-w stop-kb-w
+              group-commit write-txn false
+              (l/read-snapshot (.get-rtx this)
+                               #(->Rtx this
+                                       (.-txn ^Rtx %)
+                                       (b/allocate-buffer c/+max-key-size+)
+                                       (b/allocate-buffer c/+max-key-size+)
+                                       (b/allocate-buffer c/+max-key-size+)
+                                       (volatile! false))))))
+
+  (close-read-snapshot [_]
+    (when snapshot
+      (l/release-rtx pool (.-rtx ^ReadSnapshot snapshot))))
 
   (stat [this]
     (assert (not (.closed-kv? this)) "LMDB env is closed.")
     (try
-      (stat-map (.stat env))
+      (let [^EnvInfo info (.info env)]
+        (assoc (stat-map (.stat env))
+               :readers (l/rtx-pool-stats pool (.-numReaders info)
+                                          (.-maxReaders info))))
       (catch Exception e
         (raise "Fail to get statistics: " (ex-message e) {}))))
   (stat [this dbi-name]
@@ -468,26 +608,16 @@
 
   (transact-kv [this txs]
     (assert (not (.closed-kv? this)) "LMDB env is closed.")
-    (locking  write-txn
-      (let [^Rtx rtx  @write-txn
-            one-shot? (nil? rtx)]
-        (try
-          (if one-shot?
-            (with-open [txn (.txnWrite env)]
-              (transact* txs dbis txn)
-              (.commit txn))
-            (transact* txs dbis (.-txn rtx)))
-          :transacted
-          (catch Env$MapFullException _
-            (when-not one-shot? (.close ^Txn (.-txn rtx)))
-            (up-db-size env)
-            (if one-shot?
-              (.transact-kv this txs)
-              (do (reset-write-txn this)
-                  (raise "DB resized" {:resized true}))))
-          (catch Exception e
-            ;; (st/print-stack-trace e)
-            (raise "Fail to transact to LMDB: " e {}))))))
+    ;; calls in an explicit read/write transaction are not grouped
+    (if (and group-commit (not writing?) (nil? @write-txn))
+      (l/group-commit group-commit write-txn
+                      #(transact-batch this %) #(transact-one this %) txs)
+      (transact-one this txs)))
+
+  (load-kv [this dbi-name kvs]
+    (.load-kv this dbi-name kvs :data :data))
+  (load-kv [this dbi-name kvs k-type v-type]
+    (load* this dbi-name kvs k-type v-type [:append]))
 
   (get-value [this dbi-name k]
     (.get-value this dbi-name k :data :data true))
@@ -585,6 +715,9 @@
       (catch Exception e
         (raise "Fail to put an inverted list: " (ex-message e) {}))))
 
+  (load-list-items [this dbi-name kvs kt vt]
+    (load* this dbi-name kvs kt vt [:appenddup]))
+
   (del-list-items [this dbi-name k kt]
     (try
       (let [^DBI dbi (.get-dbi this dbi-name false)]
@@ -695,11 +828,98 @@
                    (.return-cursor dbi cur))))
       false)))
 
+(defn- transact-one
+  [^LMDB lmdb txs]
+  (let [write-txn (.-write-txn lmdb)
+        dbis      (.-dbis lmdb)
+        ^Env env  (.-env lmdb)
+        growth    (:map-growth (.-opts lmdb))]
+    (locking write-txn
+      (let [^Rtx rtx  @write-txn
+            one-shot? (nil? rtx)]
+        (try
+          (if one-shot?
+            (do (ensure-db-size env growth (count txs))
+                (with-open [txn (.txnWrite env)]
+                  (transact* txs dbis txn)
+                  (.commit txn)))
+            (transact* txs dbis (.-txn rtx)))
+          :transacted
+          (catch Env$MapFullException _
+            (when-not one-shot? (.close ^Txn (.-txn rtx)))
+            (up-db-size env growth)
+            (if one-shot?
+              (transact-one lmdb txs)
+              (do (reset-write-txn lmdb)
+                  (raise "DB resized" {:resized true}))))
+          (catch Exception e
+            ;; (st/print-stack-trace e)
+            (raise "Fail to transact to LMDB: " e {})))))))
+
+(defn- transact-batch
+  "Commit the txs of several `transact-kv` calls in one write transaction"
+  [^LMDB lmdb txs-list]
+  (let [dbis     (.-dbis lmdb)
+        ^Env env (.-env lmdb)
+        growth   (:map-growth (.-opts lmdb))]
+    (ensure-db-size env growth (reduce + (map count txs-list)))
+    (loop []
+      (when (= :resized
+               (try
+                 (with-open [txn (.txnWrite env)]
+                   (doseq [txs txs-list] (transact* txs dbis txn))
+                   (.commit txn))
+                 (catch Env$MapFullException _
+                   (up-db-size env growth)
+                   :resized)))
+        (recur)))))
+
+(defn- load*
+  "Append the sorted kvs to a DBI, with `flags` being `[:append]` for a plain
+  DBI, or `[:appenddup]` for a list DBI. The kvs are committed in batches
+  unless there is an open read/write transaction, and a batch is retried
+  after the DB is resized."
+  [lmdb dbi-name kvs kt vt flags]
+  (assert (not (l/closed-kv? lmdb)) "LMDB env is closed.")
+  (let [^DBI dbi  (l/get-dbi lmdb dbi-name false)
+        ^Env env  (.-env ^LMDB lmdb)
+        growth    (:map-growth (.-opts ^LMDB lmdb))
+        write-txn (l/write-txn lmdb)]
+    (locking write-txn
+      (try
+        (if-let [^Rtx rtx @write-txn]
+          (try
+            (load-batch dbi (.-txn rtx) kvs kt vt flags)
+            (catch Env$MapFullException _
+              (.close ^Txn (.-txn rtx))
+              (up-db-size env growth)
+              (reset-write-txn lmdb)
+              (raise "DB resized" {:resized true})))
+          (doseq [batch (partition-all c/+load-batch-size+ kvs)]
+            (ensure-db-size env growth (count batch))
+            (loop []
+              (when (= :resized
+                       (try
+                         (with-open [txn (.txnWrite env)]
+                           (load-batch dbi txn batch kt vt flags)
+                           (.commit txn))
+                         (catch Env$MapFullException _
+                           (up-db-size env growth)
+                           :resized)))
+                (recur)))))
+        :transacted
+        (catch Exception e
+          (if (:resized (ex-data e))
+            (throw e)
+            (raise "Fail to load to LMDB, the data may not be sorted: "
+                   (ex-message e) {:dbi dbi-name})))))))
+
 (defn- reset-write-txn
   [^LMDB lmdb]
   (let [kb-w       ^ByteBuffer (.-kb-w lmdb)
         start-kb-w ^ByteBuffer (.-start-kb-w lmdb)
         stop-kb-w  ^ByteBuffer (.-stop-kb-w lmdb)]
+    (ensure-db-size (.-env lmdb) (:map-growth (.-opts lmdb)) 0)
     (.clear kb-w)
     (.clear start-kb-w)
     (.clear stop-kb-w)
@@ -713,13 +933,14 @@
 (defmethod open-kv :java
   ([dir]
    (open-kv dir {}))
-  ([dir {:keys [mapsize flags temp?]
+  ([dir {:keys [mapsize flags temp? group-commit thread-rtx? map-growth]
          :or   {mapsize c/+init-db-size+
                 flags   c/default-env-flags
                 temp?   false}
          :as   opts}]
    (try
-     (let [^File file (u/file dir)
+     (let [opts       (assoc opts :map-growth (l/map-growth map-growth))
+           ^File file (u/file dir)
            builder    (doto (Env/create)
                         (.setMapSize (* ^long mapsize 1024 1024))
                         (.setMaxReaders c/+max-readers+)
@@ -729,13 +950,16 @@
                               dir
                               temp?
                               opts
-                              (ConcurrentLinkedQueue.)
+                              (l/rtx-pool
+                                (when thread-rtx? c/+max-thread-rtxs+))
                               (UnifiedMap.)
                               (b/allocate-buffer c/+max-key-size+)
                               (b/allocate-buffer c/+max-key-size+)
                               (b/allocate-buffer c/+max-key-size+)
+                              (l/commit-queue group-commit)
                               (volatile! nil)
-                              false)]
+                              false
+                              nil)]
        (when temp? (u/delete-on-exit file))
        lmdb)
      (catch Exception e
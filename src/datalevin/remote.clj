@@ -140,6 +140,9 @@
 
   (load-datoms [_ datoms]
     (load-datoms* client db-name datoms :raw false writing?))
+  (load-datoms [this datoms _]
+    ;; the server store looks up the raw datoms to keep its counters
+    (.load-datoms this datoms))
 
   (fetch [_ datom] (cl/normal-request client :fetch [db-name datom] writing?))
 
@@ -151,6 +154,10 @@
     (cl/normal-request
       client :size [db-name index low-datom high-datom] writing?))
 
+  (estimate-size [_ index low-datom high-datom]
+    (cl/normal-request
+      client :estimate-size [db-name index low-datom high-datom] writing?))
+
   (head [_ index low-datom high-datom]
     (cl/normal-request
       client :head [db-name index low-datom high-datom] writing?))
@@ -299,6 +306,16 @@
   (entries [db dbi-name]
     (cl/normal-request client :entries [db-name dbi-name] writing?))
 
+  ;; each read is a request to the server, which reads in its own rtx
+  (open-read-snapshot [db]
+    ;; the server does not pin a read transaction across requests
+    (if writing?
+      db
+      (u/raise "Read snapshot is not supported by a remote kv store, "
+               "use with-transaction-kv instead" {:uri uri})))
+
+  (close-read-snapshot [_] nil)
+
   (open-transact-kv [db]
     (cl/normal-request client :open-transact-kv [db-name])
     (.mark-write db))
@@ -326,6 +343,17 @@
           (u/raise message err-data)
           (u/raise "Error transacting kv to server:" message {:uri uri})))))
 
+  (load-kv [db dbi-name kvs]
+    (l/load-kv db dbi-name kvs :data :data))
+  (load-kv [db dbi-name kvs k-type v-type]
+    ;; appended on the server in transactions of a request each, as a
+    ;; local sized batch would be too large a message
+    (doseq [batch (partition-all c/+wire-datom-batch-size+ kvs)]
+      (l/transact-kv db (mapv (fn [[k v]]
+                                [:put dbi-name k v k-type v-type [:append]])
+                              batch)))
+    :transacted)
+
   (get-value [db dbi-name k]
     (l/get-value db dbi-name k :data :data true))
   (get-value [db dbi-name k k-type]
@@ -10,16 +10,21 @@
    [datalevin.lru :as lru]
    [clojure.string :as s])
   (:import
-   [datalevin.utl PriorityQueue GrowingIntArray]
+   [datalevin.utl TopScores ChunkedIntArray TokenStream TokenConsumer
+    TokenFilter SplitTokenizer LowerCaseFilter StopWordFilter TermCollector
+    ConcurrentShortArray WeightedLRUCache]
    [datalevin.sparselist SparseIntArrayList]
    [datalevin.spill SpillableIntObjMap]
-   [java.util ArrayList Map$Entry Arrays]
-   [java.util.concurrent.atomic AtomicInteger]
+   [java.util ArrayList ArrayDeque Map$Entry Arrays PriorityQueue Comparator]
+   [java.util.concurrent Executors ExecutorService ThreadFactory Future
+    Callable ExecutionException]
+   [java.util.concurrent.atomic AtomicInteger AtomicLong]
+   [java.util.concurrent.locks StampedLock]
    [java.io Writer]
    [org.eclipse.collections.impl.map.mutable UnifiedMap]
-   [org.eclipse.collections.impl.map.mutable.primitive IntShortHashMap
-    IntDoubleHashMap]
+   [org.eclipse.collections.impl.map.mutable.primitive IntDoubleHashMap]
    [org.eclipse.collections.impl.set.mutable.primitive IntHashSet]
+   [org.eclipse.collections.api.block.procedure.primitive IntDoubleProcedure]
    [org.eclipse.collections.impl.list.mutable FastList]
    [org.eclipse.collections.impl.list.mutable.primitive IntArrayList]
    [org.roaringbitmap RoaringBitmap FastAggregation FastRankRoaringBitmap
@@ -29,43 +34,41 @@
   (require 'datalevin.binding.graal)
   (require 'datalevin.binding.java))
 
-(defn- non-token-char?
-  [^Character c]
-  (or (Character/isWhitespace c) (c/en-punctuations? c)))
-
-(defn en-analyzer
+(deftype Analyzer [^TokenStream stream]
+  TokenStream
+  (tokenize [_ text consumer] (.tokenize stream text consumer))
+
+  clojure.lang.IFn
+  (invoke [_ text]
+    (let [res (FastList.)]
+      (.tokenize stream text
+                 (reify TokenConsumer
+                   (accept [_ buf len position offset]
+                     (.add res [(String. ^chars buf 0 len)
+                                (long position) (long offset)]))))
+      res))
+  (applyTo [this args]
+    (clojure.lang.AFn/applyToHelper this args)))
+
+(defn stream-analyzer
+  "Turn a `TokenStream` into an analyzer, i.e. a function that takes a text
+  string and return a list of [term, position, offset]. When such an analyzer
+  is used for indexing, the tokens are collected into terms directly from the
+  stream, without creating a string and a vector for each token."
+  [^TokenStream stream]
+  (->Analyzer stream))
+
+(def ^{:arglists '([x])} en-analyzer
   "English analyzer does the following:
   - split on white space and punctuation, remove them
   - lower-case all characters
   - remove stop words
   Return a list of [term, position, offset]"
-  [^String x]
-  (let [len   (.length x)
-        len-1 (dec len)
-        res   (FastList.)]
-    (loop [i     0
-           pos   0
-           in?   false
-           start 0
-           sb    (StringBuilder.)]
-      (if (< i len)
-        (let [c (.charAt x i)]
-          (if (non-token-char? c)
-            (if in?
-              (let [word (.toString sb)]
-                (when-not (c/en-stop-words? word)
-                  (.add res [word pos start]))
-                (recur (inc i) (inc pos) false i (StringBuilder.)))
-              (recur (inc i) pos false i sb))
-            (recur (inc i) pos true (if in? start i)
-                   (.append sb (Character/toLowerCase c)))))
-        (let [c (.charAt x len-1)]
-          (if (non-token-char? c)
-            res
-            (let [word (.toString sb)]
-              (when-not (c/en-stop-words? word)
-                (.add res [word pos start]))
-              res)))))))
+  (stream-analyzer
+    (SplitTokenizer. (apply str c/en-punctuations-set)
+                     (into-array TokenFilter
+                                 [LowerCaseFilter/INSTANCE
+                                  (StopWordFilter. c/en-stop-words-set)]))))
 
 (defn- collect-terms
   [result]
@@ -81,6 +84,20 @@
                  (doto (IntArrayList.) (.add (int offset)))]))))
     terms))
 
+(defn- analyze-terms
+  "Analyze a doc into a map of term -> [positions offsets]"
+  [analyzer ^String text]
+  (if (instance? TokenStream analyzer)
+    (let [collector (TermCollector. c/+max-term-length+)
+          terms     (UnifiedMap.)]
+      (.tokenize ^TokenStream analyzer text collector)
+      (dotimes [i (.size collector)]
+        (.put terms (.term collector i)
+              [(IntArrayList/newListWith (.positions collector i))
+               (IntArrayList/newListWith (.offsets collector i))]))
+      terms)
+    (collect-terms (analyzer text))))
+
 (defn idf
   "inverse document frequency of a term"
   [^long freq N]
@@ -91,43 +108,119 @@
   [freq]
   (if (zero? ^short freq) 0 (+ (Math/log10 ^short freq) 1)))
 
+(defprotocol IScoring
+  "A scoring model. The norms and the max weights of terms and blocks are
+  kept in the index, so an index should always be used with the same model."
+  (doc-norm [this unique length]
+    "norm of a doc kept in the index, given its numbers of unique terms and
+    of all terms")
+  (bound-weight [this tf norm]
+    "upper bound of the weight of a term in a doc that does not depend on
+    other docs, kept in the index as the max weights of terms and blocks")
+  (term-weight [this tf norm avg-norm]
+    "weight of a term in a doc when scoring, `avg-norm` is the average norm
+    of the docs")
+  (query-weight [this freq df n]
+    "weight of a query term appearing `freq` times in the query, that
+    appears in `df` of the `n` docs"))
+
+(deftype LnuScoring []
+  IScoring
+  (doc-norm [_ unique _] unique)
+  (bound-weight [_ tf norm] (/ ^double (tf* tf) (double norm)))
+  (term-weight [_ tf norm _] (/ ^double (tf* tf) (double norm)))
+  (query-weight [_ freq df n] (* ^double (tf* freq) ^double (idf df n))))
+
+(def lnu-scoring
+  "The default `lnu.ltn` scoring model, i.e. log-weighted term frequency
+  with pivoted unique normalization for docs, and log-weighted term
+  frequency with idf for queries"
+  (LnuScoring.))
+
+(deftype BM25Scoring [^double k1 ^double b]
+  IScoring
+  (doc-norm [_ _ length] (min ^long length Short/MAX_VALUE))
+  ;; the weight when a doc is infinitely short
+  (bound-weight [_ tf _]
+    (let [tf (double tf)]
+      (/ (* tf (inc k1)) (+ tf (* k1 (- 1.0 b))))))
+  (term-weight [_ tf norm avg-norm]
+    (let [tf (double tf)]
+      (/ (* tf (inc k1))
+         (+ tf (* k1 (+ (- 1.0 b)
+                        (* b (/ (double norm) (double avg-norm)))))))))
+  (query-weight [_ freq df n]
+    (* (double freq)
+       (Math/log (inc (/ (+ (- (double n) (double df)) 0.5)
+                         (+ (double df) 0.5)))))))
+
+(defn bm25-scoring
+  "Okapi BM25 scoring model, where the doc lengths are kept as the norms.
+  `opts` may have `:k1` (default 1.2), which controls term frequency
+  saturation, and `:b` (default 0.75), which controls doc length
+  normalization."
+  ([] (bm25-scoring nil))
+  ([{:keys [k1 b] :or {k1 1.2 b 0.75}}]
+   (BM25Scoring. k1 b)))
+
+(defn- ->scoring
+  "`scoring` option could be `:lnu`, `:bm25`, a map such as
+  `{:model :bm25 :k1 1.5 :b 0.5}`, or an `IScoring` implementation"
+  [scoring]
+  (cond
+    (or (nil? scoring)
+        (= :lnu scoring))           lnu-scoring
+    (= :bm25 scoring)               (bm25-scoring)
+    (= :bm25 (:model scoring))      (bm25-scoring scoring)
+    (= :lnu (:model scoring))       lnu-scoring
+    (satisfies? IScoring scoring)   scoring
+    :else (u/raise "Unknown scoring model" {:scoring scoring})))
+
+(defn- doc-length
+  "number of all terms in a doc"
+  ^long [^UnifiedMap new-terms]
+  (reduce (fn [^long n [^IntArrayList positions]] (+ n (.size positions)))
+          0 (.values new-terms)))
+
+(defn- block-no
+  "score block of a doc"
+  ^long [did]
+  (bit-shift-right (long did) c/+search-block-bits+))
+
+(defn- block-start
+  "first doc id of a score block"
+  ^long [^long block]
+  (min (bit-shift-left block c/+search-block-bits+) Integer/MAX_VALUE))
+
 (defn- add-max-weight
-  [mw tf norm]
-  (let [w (/ ^double (tf* tf) ^short norm)]
+  [scoring mw tf norm]
+  (let [w ^double (bound-weight scoring tf norm)]
     (if (< ^double mw w) w mw)))
 
-(defn- del-max-weight
-  [^SparseIntArrayList sl doc-id mw tf norm]
-  (let [w (/ ^double (tf* tf) ^short norm)]
-    (if (= mw w)
-      (if (= (sl/size sl) 1)
-        0.0
-        (apply max (sequence (map #(/ (if (= doc-id %)
-                                        0.0
-                                        ^double (tf* (sl/get sl %)))
-                                      ^short norm))
-                             (.-indices sl))))
-      mw)))
-
-(defn- priority-queue
-  [top]
-  (proxy [PriorityQueue] [top]
-    (lessThan [a b]
-      (< ^double (nth a 0) ^double (nth b 0)))))
-
 (defn- pouring
-  [coll ^PriorityQueue pq ^RoaringBitmap result]
+  "Move the hits of a tier from the pq to the results, as [tao score did]"
+  [coll ^TopScores pq ^RoaringBitmap result tao]
   (let [lst (ArrayList.)]
     (dotimes [_ (.size pq)]
-      (let [[_ did :as res] (.pop pq)]
-        (.add lst 0 res)
-        (.add result (int did))))
+      (let [score (.topScore pq)
+            did   (.topDoc pq)]
+        (.pop pq)
+        (.add lst 0 [tao score did])
+        (.add result did)))
     (reduce conj! coll lst)))
 
 (defn- real-score
-  [tid did tf ^IntDoubleHashMap wqs ^IntShortHashMap norms]
-  (/ (* ^double (.get wqs tid) ^double (tf* tf))
-     (double (.get norms did))))
+  [tid did tf ^IntDoubleHashMap wqs weigh]
+  (* ^double (.get wqs tid) ^double (weigh tf did)))
+
+(defn- doc-weigher
+  "Return a function of tf and doc id that computes the weight of a term in
+  a doc with the scoring model"
+  [scoring ^ConcurrentShortArray norms ^AtomicLong total-norm n]
+  (let [avg-norm (max 1.0 (/ (double (.get total-norm))
+                             (double (max 1 ^long n))))]
+    (fn [tf did]
+      (term-weight scoring tf (.get norms (int did)) avg-norm))))
 
 (defn- max-score
   [^IntDoubleHashMap wqs ^IntDoubleHashMap mws tid]
@@ -149,11 +242,14 @@
   (advance [this] "move the iterator to the next position")
   (has-next? [this] "return true if there's next in iterator")
   (get-did [this] "return the current did the iterator points to")
-  (get-tf [this did] "return tf of the given did"))
+  (get-tf [this did] "return tf of the given did")
+  (block-max [this block] "return the max score of the term in a block"))
 
 (deftype ^:no-doc Candidate [^int tid
                              ^SparseIntArrayList sl
-                             ^PeekableIntIterator iter]
+                             ^PeekableIntIterator iter
+                             ^IntDoubleHashMap blocks
+                             ^double wq]
   ICandidate
   (skip-before [this limit] (.advanceIfNeeded iter limit) this)
 
@@ -164,8 +260,11 @@
   (get-did [_] (.peekNext iter))
 
   (get-tf [_ did]
-    (.get ^GrowingIntArray (.-items sl)
-          (dec (.rank ^FastRankRoaringBitmap (.-indices sl) did)))))
+    (.get ^ChunkedIntArray (.-items sl)
+          (dec (.rank ^FastRankRoaringBitmap (.-indices sl) did))))
+
+  (block-max [_ block]
+    (* wq (.get blocks (int block)))))
 
 (defn- candidate-comp
   [^Candidate a ^Candidate b]
@@ -197,7 +296,7 @@
           [score n-1 (get-did (aget candidates n-1))])))))
 
 (defn- score-pivot
-  [wqs ^IntDoubleHashMap mxs norms pivot-did minimal-score mxscore tao n
+  [wqs ^IntDoubleHashMap mxs weigh pivot-did minimal-score mxscore tao n
    ^"[Ldatalevin.search.Candidate;" candidates]
   (let [c (alength candidates)]
     (loop [score mxscore hits 0 k 0]
@@ -212,7 +311,7 @@
                       s   (+ (- ^double score ^double (.get mxs tid))
                              ^double (real-score tid did
                                                  (get-tf candidate did)
-                                                 wqs norms))]
+                                                 wqs weigh))]
                   (if (< s ^double minimal-score)
                     :prune
                     (recur s h (inc k))))))
@@ -227,7 +326,8 @@
                (make-array Candidate (.size ~'lst)))))
 
 (defn- first-candidates
-  [sls bms tids ^RoaringBitmap result tao n]
+  [sls bms bks ^IntDoubleHashMap wqs tids ^RoaringBitmap result
+   ^RoaringBitmap allowed tao n]
   (let [z          (inc (- ^long n ^long tao))
         union-tids (set (take z tids))
         union-bms  (->> (select-keys bms union-tids)
@@ -237,16 +337,22 @@
                      ^"[Lorg.roaringbitmap.RoaringBitmap;" union-bms)]
     (candidate-array
       (doseq [tid tids]
+        ;; the query owns the bitmaps, so they are only iterated as they
+        ;; are, or filtered into new bitmaps sized to the results
         (let [bm   ^RoaringBitmap (bms tid)
-              bm'  (let [iter-bm (.clone bm)]
-                     (if (or (union-tids tid) (= tao 1))
-                       iter-bm
-                       (doto ^RoaringBitmap iter-bm
-                         (.and ^RoaringBitmap union-bm))))
-              bm'  (doto ^RoaringBitmap bm' (.andNot result))
+              bm'  (if (or (union-tids tid) (= tao 1))
+                     bm
+                     (RoaringBitmap/and bm ^RoaringBitmap union-bm))
+              bm'  (if (.isEmpty result)
+                     bm'
+                     (RoaringBitmap/andNot bm' result))
+              bm'  (if allowed
+                     (RoaringBitmap/and bm' allowed)
+                     bm')
               iter (.getIntIterator ^RoaringBitmap bm')]
           (when (.hasNext ^PeekableIntIterator iter)
-            (.add lst (Candidate. tid (sls tid) iter))))))))
+            (.add lst (Candidate. tid (sls tid) iter (bks tid)
+                                  (.get wqs tid)))))))))
 
 (defn- next-candidates
   [did ^"[Ldatalevin.search.Candidate;" candidates]
@@ -267,45 +373,146 @@
               (when (has-next? candidate) (.add lst candidate)))
           (.add lst candidate))))))
 
+(defn- last-tie
+  "extend the pivot to the last candidate pointing to the same did"
+  ^long [^long pivot pivot-did ^"[Ldatalevin.search.Candidate;" candidates]
+  (let [n (alength candidates)]
+    (loop [p pivot]
+      (let [p+1 (inc p)]
+        (if (and (< p+1 n)
+                 (= ^int pivot-did ^int (get-did (aget candidates p+1))))
+          (recur p+1)
+          p)))))
+
+(defn- block-bound
+  "upper bound of the scores of the docs in the block of the pivot did,
+  considering only the candidates up to the pivot"
+  ^double [^long pivot pivot-did ^"[Ldatalevin.search.Candidate;" candidates]
+  (let [block (block-no pivot-did)]
+    (loop [bound 0.0 i 0]
+      (if (<= i pivot)
+        (recur (+ bound ^double (block-max (aget candidates i) block))
+               (inc i))
+        bound))))
+
+(defn- next-block-did
+  "the smallest did that may score higher than the current block bound"
+  [^long pivot pivot-did ^"[Ldatalevin.search.Candidate;" candidates]
+  (let [nb  (block-start (inc (block-no pivot-did)))
+        p+1 (inc pivot)]
+    (if (< p+1 (alength candidates))
+      (min nb (long (get-did (aget candidates p+1))))
+      nb)))
+
+(defprotocol ^:no-doc ISharedTop
+  (offer [this tao score] "record a hit found by one of the engines")
+  (floor-score [this tao]
+    "the score a hit in tier `tao` has to beat to make the merged top"))
+
+(deftype ^:no-doc SharedTop [^long k
+                             ^PriorityQueue pq
+                             ^:volatile-mutable floor]
+  ;; the merged results are ordered by tier, then by score, so `pq` keeps
+  ;; the best k hits as [tao score] found so far by all the engines, and
+  ;; `floor` is the least of them once there are k
+  ISharedTop
+  (offer [this tao score]
+    (locking this
+      (.add pq [tao score])
+      (when (< k (.size pq)) (.poll pq))
+      (when (= k (.size pq)) (set! floor (.peek pq)))))
+
+  (floor-score [_ tao]
+    (if-let [[ft fs] floor]
+      (cond
+        (< ^long ft ^long tao) -0.1
+        (= ^long ft ^long tao) fs
+        :else                  Double/POSITIVE_INFINITY)
+      -0.1)))
+
+(defn- shared-top
+  [^long k]
+  (->SharedTop k
+               (PriorityQueue. (max 1 k)
+                               (reify Comparator
+                                 (compare [_ [t1 s1] [t2 s2]]
+                                   (if (= t1 t2)
+                                     (compare s1 s2)
+                                     (compare t1 t2)))))
+               nil))
+
 (defn- current-threshold
-  [^PriorityQueue pq]
-  (if (< (.size pq) (.maxSize pq))
-    -0.1
-    (nth (.top pq) 0)))
+  "the score a doc has to beat to make the top, also considering the hits of
+  the other engines in a federated search"
+  ^double [^TopScores pq shared tao]
+  (let [local (if (.isFull pq) (.topScore pq) -0.1)]
+    (if shared
+      (Math/max local (double (floor-score shared tao)))
+      local)))
+
+(defn- insert-hit
+  "Insert a hit that scores high enough, if it passes `accept?`, a test of
+  doc ids for a doc filter predicate, or nil"
+  [^TopScores pq shared tao score did accept?]
+  (when (and (or (nil? accept?) (accept? did))
+             (.insert pq (double score) (int did))
+             shared)
+    (offer shared tao score)))
 
 (defn- score-term
-  [^Candidate candidate ^IntDoubleHashMap mxs wqs norms minimal-score pq]
+  [^Candidate candidate ^IntDoubleHashMap mxs wqs weigh minimal-score pq
+   shared tao accept?]
   (let [tid (.-tid candidate)]
     (when (< ^double minimal-score (.get mxs tid))
       (loop [did (get-did candidate) minscore minimal-score]
-        (let [score (real-score tid did (get-tf candidate did) wqs norms)]
-          (when (< ^double minscore ^double score)
-            (.insertWithOverflow ^PriorityQueue pq [score did])))
-        (when (has-next? (advance candidate))
-          (recur (get-did candidate) (current-threshold pq)))))))
+        (let [block (block-no did)]
+          (if (<= ^double (block-max candidate block) ^double minscore)
+            (when (has-next? (skip-before candidate
+                                          (block-start (inc block))))
+              (recur (get-did candidate) minscore))
+            (do
+              (let [score (real-score tid did (get-tf candidate did)
+                                      wqs weigh)]
+                (when (< ^double minscore ^double score)
+                  (insert-hit pq shared tao score did accept?)))
+              (when (has-next? (advance candidate))
+                (recur (get-did candidate)
+                       (current-threshold pq shared tao))))))))))
 
 (defn- score-docs
-  [n tids sls bms mxs wqs ^IntShortHashMap norms ^RoaringBitmap result]
-  (fn [^PriorityQueue pq ^long tao] ; target # of overlaps between query and doc
+  [n tids sls bms bks mxs wqs weigh ^RoaringBitmap result
+   ^RoaringBitmap allowed accept? shared]
+  (fn [^TopScores pq ^long tao] ; target # of overlaps between query and doc
     (loop [^"[Ldatalevin.search.Candidate;" candidates
-           (first-candidates sls bms tids result tao n)]
+           (first-candidates sls bms bks wqs tids result allowed tao n)]
       (let [nc            (alength candidates)
-            minimal-score ^double (current-threshold pq)]
+            minimal-score ^double (current-threshold pq shared tao)]
         (cond
           (or (= nc 0) (< nc tao)) :finish
           (= nc 1)
-          (score-term (aget candidates 0) mxs wqs norms minimal-score pq)
+          (score-term (aget candidates 0) mxs wqs weigh minimal-score pq
+                      shared tao accept?)
           :else
           (let [_                   (Arrays/sort candidates candidate-comp)
                 [mxscore pivot did] (find-pivot mxs (dec tao)
                                                 minimal-score
-                                                candidates)]
-            (if (= ^int did ^int (get-did (aget candidates 0)))
-              (let [score (score-pivot wqs mxs norms did minimal-score
+                                                candidates)
+                tie                 (last-tie pivot did candidates)]
+            (cond
+              ;; no doc in this block can make it, skip the block
+              (<= (block-bound tie did candidates) minimal-score)
+              (recur (skip-candidates (inc tie)
+                                      (next-block-did tie did candidates)
+                                      candidates))
+
+              (= ^int did ^int (get-did (aget candidates 0)))
+              (let [score (score-pivot wqs mxs weigh did minimal-score
                                        mxscore tao n candidates)]
                 (when-not (= score :prune)
-                  (.insertWithOverflow pq [score did]))
+                  (insert-hit pq shared tao score did accept?))
                 (recur (next-candidates did candidates)))
+
+              :else
               (recur (skip-candidates pivot did candidates)))))))))
 
 (defprotocol ISearchEngine
@@ -316,7 +523,9 @@
   (doc-count [this])
   (search [this query] [this query opts]))
 
-(declare doc-ref->id remove-doc* add-doc* hydrate-query display-xf)
+(declare doc-ref->id remove-doc* add-doc* hydrate-query display-xf
+         doc-filter-bitmap doc-filter-pred positional-search expand-tokens read-state
+         write-state result-key cached-search search-analyzed)
 
 (deftype SearchEngine [lmdb
                        analyzer
@@ -324,35 +533,59 @@
                        terms-dbi
                        docs-dbi
                        positions-dbi
+                       segments-dbi
+                       blocks-dbi
+                       journal-dbi
+                       snapshot-dbi
                        ^SpillableIntObjMap terms ; term-id -> term
                        ^SpillableIntObjMap docs  ; doc-id -> doc-ref
-                       ^IntShortHashMap norms    ; doc-id -> norm
+                       ^ConcurrentShortArray norms ; doc-id -> norm
+                       ^AtomicLong total-norm
+                       scoring
                        cache
+                       ^StampedLock lock ; publishes in-memory changes
+                       ^AtomicLong generation ; bumped on doc changes
+                       ^WeightedLRUCache result-cache
                        ^AtomicInteger max-doc
                        ^AtomicInteger max-term
-                       index-position?]
+                       ^AtomicLong journal-seq
+                       ^AtomicLong snapshot-seq
+                       index-position?
+                       ^long segment-size
+                       ^long max-segments]
   ISearchEngine
   (add-doc [this doc-ref doc-text check-exist?]
-    (locking docs
-      (when-not (s/blank? doc-text)
-        (when check-exist?
-          (when-let [doc-id (doc-ref->id this doc-ref)]
-            (remove-doc* this doc-id doc-ref)))
-        (add-doc* this doc-ref doc-text))))
+    (when-not (s/blank? doc-text)
+      (let [new-terms (analyze-terms analyzer doc-text)]
+        ;; lock in the same order as the Datalog store and the compactor
+        (locking (l/write-txn lmdb)
+          (when check-exist?
+            (when-let [doc-id (doc-ref->id this doc-ref)]
+              (remove-doc* this doc-id doc-ref)))
+          (add-doc* this doc-ref new-terms)))))
   (add-doc [this doc-ref doc-text]
     (.add-doc this doc-ref doc-text true))
 
   (remove-doc [this doc-ref]
-    (if-let [doc-id (doc-ref->id this doc-ref)]
-      (remove-doc* this doc-id doc-ref)
-      (u/raise "Document does not exist." {:doc-ref doc-ref})))
-
-  (clear-docs [_]
-    (.empty docs)
-    (.empty terms)
+    (locking (l/write-txn lmdb)
+      (if-let [doc-id (doc-ref->id this doc-ref)]
+        (remove-doc* this doc-id doc-ref)
+        (u/raise "Document does not exist." {:doc-ref doc-ref}))))
+
+  (clear-docs [this]
+    (write-state this
+                 #(do (.empty docs)
+                      (.empty terms)
+                      (.clear norms)
+                      (.set total-norm 0)
+                      (.incrementAndGet generation)))
     (l/clear-dbi lmdb terms-dbi)
     (l/clear-dbi lmdb docs-dbi)
-    (l/clear-dbi lmdb positions-dbi))
+    (l/clear-dbi lmdb positions-dbi)
+    (l/clear-dbi lmdb segments-dbi)
+    (l/clear-dbi lmdb blocks-dbi)
+    (l/clear-dbi lmdb journal-dbi)
+    (l/clear-dbi lmdb snapshot-dbi))
 
   (doc-indexed? [this doc-ref] (doc-ref->id this doc-ref))
 
@@ -360,52 +593,425 @@
 
   (search [this query]
     (.search this query {}))
-  (search [this query {:keys [display ^long top doc-filter]
-                       :or   {display    :refs
-                              top        10
-                              doc-filter (constantly true)}}]
+  (search [this query {:keys [phrase? proximity expand] :as opts}]
     (when-not (s/blank? query)
-      (let [tokens (->> (query-analyzer query)
-                        (mapv first)
-                        (into-array String))
-            qterms (->> (hydrate-query this max-doc tokens)
-                        (sort-by :df)
-                        vec)
-            n      (count qterms)]
-        (when-not (zero? n)
-          (let [tids    (mapv :id qterms)
-                sls     (mapv :sl qterms)
-                bms     (zipmap tids (mapv #(.-indices ^SparseIntArrayList %)
-                                           sls))
-                sls     (zipmap tids sls)
-                tms     (zipmap tids (mapv :tm qterms))
-                mws     (get-ws tids qterms :mw)
-                wqs     (get-ws tids qterms :wq)
-                mxs     (get-mxs tids wqs mws)
-                result  (RoaringBitmap.)
-                scoring (score-docs n tids sls bms mxs wqs norms result)]
-            (sequence
-              (display-xf this doc-filter display tms)
-              (persistent!
-                (reduce
-                  (fn [coll tao]
-                    (let [so-far (count coll)
-                          to-get (- top so-far)]
-                      (if (< 0 to-get)
-                        (let [^PriorityQueue pq (priority-queue to-get)]
-                          (scoring pq tao)
-                          (pouring coll pq result))
-                        (reduced coll))))
-                  (transient [])
-                  (range n 0 -1))))))))))
+      (when (and expand (or phrase? proximity))
+        (u/raise "Term expansion does not work with phrase or proximity search"
+                 {:expand expand}))
+      (let [analyzed (query-analyzer query)]
+        (if-let [k (when result-cache (result-key this query analyzed opts))]
+          (cached-search this k #(search-analyzed this query analyzed opts))
+          (search-analyzed this query analyzed opts))))))
+
+(defn- search-hits
+  "Return the top hits of a search as [hits terms], where hits are
+  [tao score doc-id] in descending order, and terms is a map of term ids to
+  the query terms. `shared` is the top of a federated search, or nil."
+  [^SearchEngine engine query analyzed
+   {:keys [^long top doc-filter phrase? proximity expand]
+    :or   {top 10}
+    :as   opts}
+   shared]
+  (let [tokens   (->> (if expand
+                        (expand-tokens engine query analyzed opts)
+                        (mapv first analyzed))
+                      (into-array String))
+        qterms   (->> (read-state engine
+                                  #(hydrate-query engine (.-max-doc engine)
+                                                  tokens))
+                      (sort-by :df)
+                      vec)
+        n        (count qterms)
+        allowed  (when (and (set? doc-filter) (< 0 n))
+                   (read-state engine
+                               #(doc-filter-bitmap engine doc-filter)))
+        accept?  (when (and doc-filter (not (set? doc-filter)))
+                   (doc-filter-pred engine doc-filter))]
+    (cond
+      (zero? n) nil
+
+      (and allowed (.isEmpty ^RoaringBitmap allowed)) nil
+
+      (or phrase? proximity)
+      (positional-search engine analyzed qterms top allowed accept?
+                         proximity shared)
+
+      :else
+      (let [tids    (mapv :id qterms)
+            sls     (mapv :sl qterms)
+            bms     (zipmap tids (mapv #(.-indices ^SparseIntArrayList %)
+                                       sls))
+            sls     (zipmap tids sls)
+            tms     (zipmap tids (mapv :tm qterms))
+            bks     (zipmap tids (mapv :bk qterms))
+            mws     (get-ws tids qterms :mw)
+            wqs     (get-ws tids qterms :wq)
+            mxs     (get-mxs tids wqs mws)
+            result  (RoaringBitmap.)
+            weigh   (doc-weigher (.-scoring engine) (.-norms engine)
+                                 (.-total-norm engine) (count (.-docs engine)))
+            scorer  (score-docs n tids sls bms bks mxs wqs weigh result
+                                allowed accept? shared)]
+        [(persistent!
+           (reduce
+             (fn [coll tao]
+               (let [so-far (count coll)
+                     to-get (- top so-far)]
+                 (if (and (< 0 to-get)
+                          ;; other engines already have enough better hits
+                          (not (and shared
+                                    (Double/isInfinite
+                                      (double (floor-score shared tao))))))
+                   (let [pq (TopScores. to-get)]
+                     (scorer pq tao)
+                     (pouring coll pq result tao))
+                   (reduced coll))))
+             (transient [])
+             (range n 0 -1)))
+         tms]))))
+
+(defn- search-analyzed
+  [engine query analyzed {:keys [display] :or {display :refs} :as opts}]
+  (when-let [[hits tms] (search-hits engine query analyzed opts nil)]
+    (sequence (display-xf engine display tms hits) hits)))
+
+(defn- result-key
+  "Return the key of a search in the result cache, or nil if it cannot be
+  cached. The key is made of the query terms, the search options and the
+  generation of the index, so results are not reused after docs change."
+  [^SearchEngine engine query analyzed
+   {:keys [display top doc-filter phrase? proximity expand max-edits
+           max-expansions]
+    :or   {display :refs
+           top     10}}]
+  (when (or (nil? doc-filter) (set? doc-filter))
+    [(.get ^AtomicLong (.-generation engine))
+     (cond
+       ;; wildcards do not go through the analyzer
+       (= expand :wildcard)  query
+       ;; positions matter
+       (or phrase? proximity) (mapv (fn [[term pos]] [term pos]) analyzed)
+       ;; term order does not matter
+       :else                  (frequencies (map first analyzed)))
+     display top doc-filter phrase? proximity expand max-edits
+     max-expansions]))
+
+(defn- result-weight
+  "Estimate the size of search results in bytes"
+  ^long [display res]
+  (if (= display :offsets)
+    ;; [doc-ref [[term [offset ...]] ...]]
+    (reduce (fn [^long w [_ terms]]
+              (reduce (fn [^long w [_ offsets]]
+                        (+ w 64 (* 16 (count offsets))))
+                      (+ w 64) terms))
+            256 res)
+    (+ 256 (* 64 (count res)))))
+
+(defn- cached-search
+  [^SearchEngine engine [_ _ display :as k] f]
+  (let [^WeightedLRUCache cache (.-result-cache engine)]
+    (or (.get cache k)
+        (when-let [res (some-> (f) vec)]
+          (.put cache k res (result-weight display res))
+          res))))
+
+(defn result-cache-stats
+  "Return the statistics of the result cache of a search engine, or nil if
+  the cache is not enabled"
+  [^SearchEngine engine]
+  (when-let [^WeightedLRUCache cache (.-result-cache engine)]
+    (let [hits   (.hits cache)
+          misses (.misses cache)
+          total  (+ hits misses)]
+      {:hits      hits
+       :misses    misses
+       :hit-ratio (if (zero? total) 0.0 (/ (double hits) total))
+       :entries   (.size cache)
+       :bytes     (.weight cache)
+       :capacity  (.capacity cache)
+       :evictions (.evictions cache)})))
+
+(defn- read-state
+  "Run `f` on a consistent view of the in-memory state of the engine, i.e.
+  the cached term-infos, the docs and the terms. It runs without locking,
+  and only runs again under the read lock if a writer has published changes
+  in the meantime, so `f` should have no side effects other than caching."
+  [^SearchEngine engine f]
+  (let [^StampedLock lock (.-lock engine)
+        stamp             (.tryOptimisticRead lock)
+        res               (if (zero? stamp)
+                            ::retry
+                            ;; a torn read may throw
+                            (try (f) (catch Exception _ ::retry)))]
+    (if (and (not (identical? res ::retry)) (.validate lock stamp))
+      res
+      (let [stamp (.readLock lock)]
+        (try (f) (finally (.unlockRead lock stamp)))))))
+
+(defn- write-state
+  "Run `f` that changes the in-memory state of the engine in place, and
+  publish the changes to the readers at once"
+  [^SearchEngine engine f]
+  (let [^StampedLock lock (.-lock engine)
+        stamp             (.writeLock lock)]
+    (try (f) (finally (.unlockWrite lock stamp)))))
 
 (defn- get-term-info
+  "Return the base term-info of a term, i.e. [tid mw sl]"
   [^SearchEngine engine term]
   (lru/-get (.-cache engine)
             [:get-term-info term]
             #(l/get-value (.-lmdb engine) (.-terms-dbi engine) term
                           :string :term-info)))
 
+(defn- read-segments
+  [lmdb segments-dbi tid]
+  (into [] (l/get-range lmdb segments-dbi
+                        [:closed [tid 0] [tid Integer/MAX_VALUE]]
+                        :int-int :term-info true)))
+
+(defn- get-segments
+  "Return the segments of a term in the order of creation, each is a
+  [seg-no mw sl]"
+  [^SearchEngine engine tid]
+  (lru/-get (.-cache engine)
+            [:get-segments tid]
+            #(read-segments (.-lmdb engine) (.-segments-dbi engine) tid)))
+
+(defn- read-blocks
+  [lmdb blocks-dbi tid]
+  (let [blocks (IntDoubleHashMap.)]
+    (l/visit lmdb blocks-dbi
+             (fn [kv]
+               (.put blocks
+                     (int (nth (b/read-buffer (l/k kv) :int-int) 1))
+                     (double (b/read-buffer (l/v kv) :double))))
+             [:closed [tid 0] [tid Integer/MAX_VALUE]] :int-int)
+    blocks))
+
+(defn- get-blocks
+  "Return the max weights of a term in its score blocks, as a map of
+  block-no -> max-weight. Blocks without postings of the term are absent.
+  Writers replace the map instead of changing it, so a query may keep it."
+  ^IntDoubleHashMap [^SearchEngine engine tid]
+  (lru/-get (.-cache engine)
+            [:get-blocks tid]
+            #(read-blocks (.-lmdb engine) (.-blocks-dbi engine) tid)))
+
+(defn- cache-put
+  [^SearchEngine engine k v]
+  (lru/-put (.-cache engine) k v))
+
+(defn- set-block-weight
+  "Set the max weight of a term in a block, return the txs needed. The
+  blocks are copied on write, as queries may be reading them."
+  [^SearchEngine engine tid ^long block ^double w]
+  (let [blocks ^IntDoubleHashMap (get-blocks engine tid)
+        exist? (.containsKey blocks block)]
+    (cond
+      (< 0.0 w)
+      (do (cache-put engine [:get-blocks tid]
+                     (doto (IntDoubleHashMap. blocks) (.put block w)))
+          [[:put (.-blocks-dbi engine) [tid block] w :int-int :double]])
+      exist?
+      (do (cache-put engine [:get-blocks tid]
+                     (doto (IntDoubleHashMap. blocks) (.remove block)))
+          [[:del (.-blocks-dbi engine) [tid block] :int-int]])
+      :else [])))
+
+(defn- add-block-weight
+  "Raise the max weight of a term in the block of a doc if needed"
+  [^SearchEngine engine tid doc-id tf norm]
+  (let [block (block-no doc-id)
+        w     (bound-weight (.-scoring engine) tf norm)]
+    (if (< (.getIfAbsent ^IntDoubleHashMap (get-blocks engine tid) block -1.0)
+           w)
+      (set-block-weight engine tid block w)
+      [])))
+
+(defn- block-weight
+  "Compute the max weight of the postings in a block"
+  ^double [scoring ^ConcurrentShortArray norms sls ^long block]
+  (let [lo (block-start block)
+        hi (block-start (inc block))]
+    (reduce
+      (fn [^double mw ^SparseIntArrayList sl]
+        (let [iter ^PeekableIntIterator (.getIntIterator
+                                          ^RoaringBitmap (.-indices sl))]
+          (.advanceIfNeeded iter lo)
+          (loop [mw mw]
+            (if (and (.hasNext iter) (< (.peekNext iter) hi))
+              (let [did (.next iter)]
+                (recur (Math/max mw ^double (bound-weight scoring
+                                                          (sl/get sl did)
+                                                          (.get norms did)))))
+              mw))))
+      0.0 sls)))
+
+(defn- journal
+  "Return the tx that records a change of the in-memory state, i.e. docs,
+  norms and terms, since the last snapshot"
+  [^SearchEngine engine change]
+  [:put (.-journal-dbi engine)
+   (.incrementAndGet ^AtomicLong (.-journal-seq engine)) change :id :data])
+
+(defn- merge-term-info
+  "Merge the base term-info with its segments into a new term-info"
+  [[tid mw sl :as base] segs]
+  (if (seq segs)
+    [tid
+     (reduce (fn [m [_ smw _]] (Math/max (double m) (double smw))) mw segs)
+     (sl/concat-lists (into [sl] (map peek) segs))]
+    base))
+
+(defn- compact-term
+  "Fold the segments of a term into its base term-info. Unless `force?`,
+  only do so when the term has too many segments."
+  [^SearchEngine engine term force?]
+  (when-let [[tid :as base] (get-term-info engine term)]
+    (let [segs (get-segments engine tid)]
+      (when (and (seq segs)
+                 (or force?
+                     (< (.-max-segments engine) (count segs))))
+        (let [segments-dbi (.-segments-dbi engine)
+              term-info    (merge-term-info base segs)]
+          (l/transact-kv
+            (.-lmdb engine)
+            (into [[:put (.-terms-dbi engine) term term-info
+                    :string :term-info]]
+                  (map (fn [[seg-no]]
+                         [:del segments-dbi [tid seg-no] :int-int]))
+                  segs))
+          (write-state engine
+                       #(do (cache-put engine [:get-term-info term] term-info)
+                            (cache-put engine [:get-segments tid] []))))))))
+
+(defonce ^:private ^ExecutorService compactor
+  (Executors/newSingleThreadExecutor
+    (reify ThreadFactory
+      (newThread [_ r]
+        (doto (Thread. ^Runnable r "datalevin-search-compactor")
+          (.setDaemon true))))))
+
+(defn- schedule-compaction
+  "Compact the segments of a term in the background"
+  [^SearchEngine engine term]
+  (let [lmdb (.-lmdb engine)]
+    ;; a writing lmdb is only valid within its transaction
+    (when-not (l/writing? lmdb)
+      (.execute compactor
+                #(try
+                   (when-not (l/closed-kv? lmdb)
+                     (locking (l/write-txn lmdb)
+                       (compact-term engine term false)))
+                   (catch Exception _
+                     ;; will try again when more postings are added
+                     nil))))))
+
+(defn compact
+  "Fold all posting segments into the base term-infos. Segments are
+  normally compacted in the background when there are too many of them."
+  [^SearchEngine engine]
+  (let [lmdb (.-lmdb engine)
+        tids (IntHashSet.)]
+    (l/visit lmdb (.-segments-dbi engine)
+             (fn [kv] (.add tids (int (nth (b/read-buffer (l/k kv) :int-int)
+                                           0))))
+             [:all] :int-int)
+    (locking (l/write-txn lmdb)
+      (doseq [tid (.toArray tids)]
+        (when-let [term ((.-terms engine) tid)]
+          (compact-term engine term true))))))
+
+(defn snapshot
+  "Write a snapshot of the in-memory state of the search engine, i.e. the
+  norms, doc-id -> doc-ref and term-id -> term maps, so that it is loaded
+  by `new-search-engine`, and only the changes made afterwards need to be
+  replayed. It is normally done in the background when there are many such
+  changes."
+  [^SearchEngine engine]
+  (let [lmdb         (.-lmdb engine)
+        snapshot-dbi (.-snapshot-dbi engine)
+        journal-dbi  (.-journal-dbi engine)
+        n            ^long c/+search-snapshot-chunk+
+        [watermark max-doc max-term ^ints dids ^ints ns refs ^ints tids ts]
+        ;; no writer, and readers do not change the state
+        (locking (l/write-txn lmdb)
+          (let [^ConcurrentShortArray norms (.-norms engine)
+                docs                        (.-docs engine)
+                dids                        (doto (int-array (map key docs))
+                                              (Arrays/sort))
+                entries                     (sort-by key
+                                                     (seq (.-terms engine)))]
+            [(.get ^AtomicLong (.-journal-seq engine))
+             (.get ^AtomicInteger (.-max-doc engine))
+             (.get ^AtomicInteger (.-max-term engine))
+             dids
+             (int-array (map #(.get norms (int %)) dids))
+             (mapv docs dids)
+             (int-array (map key entries))
+             (mapv val entries)]))
+        chunks       (fn [^long total] (quot (+ total (dec n)) n))
+        doc-chunks   (chunks (alength dids))
+        term-chunks  (chunks (alength tids))
+        txs          (FastList.)]
+    (dotimes [i doc-chunks]
+      (let [from (* i n)
+            to   (min (alength dids) (+ from n))]
+        (.add txs [:put snapshot-dbi [1 i] (Arrays/copyOfRange dids from to)
+                   :int-int :ints])
+        (.add txs [:put snapshot-dbi [2 i] (Arrays/copyOfRange ns from to)
+                   :int-int :ints])
+        (.add txs [:put snapshot-dbi [3 i] (into [] (subvec refs from to))
+                   :int-int :data])))
+    (dotimes [i term-chunks]
+      (let [from (* i n)
+            to   (min (alength tids) (+ from n))]
+        (.add txs [:put snapshot-dbi [4 i] (Arrays/copyOfRange tids from to)
+                   :int-int :ints])
+        (.add txs [:put snapshot-dbi [5 i] (into [] (subvec ts from to))
+                   :int-int :data])))
+    (.add txs [:put snapshot-dbi [0 0]
+               {:watermark   watermark
+                :max-doc     max-doc
+                :max-term    max-term
+                :doc-chunks  doc-chunks
+                :term-chunks term-chunks}
+               :int-int :data])
+    (l/with-transaction-kv [db lmdb]
+      (let [dels (FastList.)]
+        ;; remove the old snapshot and the journal it covers
+        (l/visit db snapshot-dbi
+                 #(.add dels [:del snapshot-dbi
+                              (b/read-buffer (l/k %) :int-int) :int-int])
+                 [:all] :int-int)
+        (l/visit db journal-dbi
+                 #(.add dels [:del journal-dbi (b/read-buffer (l/k %) :id)
+                              :id])
+                 [:at-most watermark] :id)
+        (l/transact-kv db dels)
+        (l/transact-kv db txs)))
+    (.set ^AtomicLong (.-snapshot-seq engine) watermark)
+    :snapshot-written))
+
+(defn- schedule-snapshot
+  "Write a snapshot in the background if the journal has grown large"
+  [^SearchEngine engine]
+  (let [lmdb     (.-lmdb engine)
+        jseq     (.get ^AtomicLong (.-journal-seq engine))
+        snap-seq ^AtomicLong (.-snapshot-seq engine)]
+    (when (and (< ^long c/+search-journal-size+ (- jseq (.get snap-seq)))
+               (not (l/writing? lmdb)))
+      ;; avoid scheduling again before it is written
+      (.set snap-seq jseq)
+      (.execute compactor
+                #(try
+                   (when-not (l/closed-kv? lmdb) (snapshot engine))
+                   (catch Exception _
+                     ;; will try again when the journal grows
+                     nil))))))
+
 (defn- term-id->term-info
   [^SearchEngine engine term-id]
   (when-let [term ((.-terms engine) term-id)]
@@ -442,76 +1048,196 @@
                  ar
                  (term-ids-via-positions-dbi engine doc-ref)))))
 
+(defn- del-block-weight
+  "Recompute the max weight of a term in the block of a removed doc, only
+  if the doc held the max, return the txs needed"
+  [^SearchEngine engine term-id term doc-id tf norm]
+  (let [block (block-no doc-id)
+        mw    (.get ^IntDoubleHashMap (get-blocks engine term-id) block)]
+    (if (<= mw ^double (bound-weight (.-scoring engine) tf norm))
+      (set-block-weight
+        engine term-id block
+        (block-weight (.-scoring engine) (.-norms engine)
+                      (cons (peek (get-term-info engine term))
+                            (map peek (get-segments engine term-id)))
+                      block))
+      [])))
+
+(defn- list-max-weight
+  "Return the max weight of a posting list from the max weights of the
+  blocks it spans, instead of going through its postings. When a block is
+  shared with other lists of the term, this may be above the exact max,
+  which is still a valid bound for pruning."
+  ^double [^SearchEngine engine tid ^SparseIntArrayList sl]
+  (let [^RoaringBitmap indices (.-indices sl)]
+    (if (.isEmpty indices)
+      0.0
+      (let [lo     (block-no (.first indices))
+            hi     (block-no (.last indices))
+            blocks ^IntDoubleHashMap (get-blocks engine tid)]
+        (if (< (- hi lo) (.size blocks))
+          (loop [b lo mw 0.0]
+            (if (<= b hi)
+              (recur (inc b) (Math/max mw (.getIfAbsent blocks (int b) 0.0)))
+              mw))
+          (let [mw (double-array 1)]
+            (.forEachKeyValue
+              blocks
+              (reify IntDoubleProcedure
+                (value [_ b w]
+                  (when (<= lo b hi)
+                    (aset mw 0 (Math/max (aget mw 0) w))))))
+            (aget mw 0)))))))
+
+(defn- remove-posting
+  "Remove the posting of a doc from a term, return the txs needed. The max
+  weight of the score block of the doc is updated first, then, only if the
+  doc held the max weight of its posting list, the max weight of the list
+  is recomputed from the blocks it spans, so the cost does not grow with
+  doc frequency."
+  [^SearchEngine engine term-id term [_ mw sl] doc-id norm]
+  (if-let [tf (sl/get sl doc-id)]
+    (let [_         (sl/remove sl doc-id)
+          txs       (del-block-weight engine term-id term doc-id tf norm)
+          term-info [term-id
+                     (if (< ^double (bound-weight (.-scoring engine) tf norm)
+                            ^double mw)
+                       mw
+                       (list-max-weight engine term-id sl))
+                     sl]]
+      (cache-put engine [:get-term-info term] term-info)
+      (conj txs [:put (.-terms-dbi engine) term term-info
+                 :string :term-info]))
+    (let [segs (get-segments engine term-id)]
+      (if-let [i (first (keep-indexed
+                            (fn [i [_ _ ssl]]
+                              (when (sl/contains-index? ssl doc-id) i))
+                            segs))]
+        (let [[seg-no smw ssl] (segs i)
+              tf               (sl/get ssl doc-id)
+              _                (sl/remove ssl doc-id)
+              txs              (del-block-weight engine term-id term doc-id
+                                                 tf norm)
+              segments-dbi     (.-segments-dbi engine)]
+          (if (zero? ^long (sl/size ssl))
+            (do (cache-put engine [:get-segments term-id]
+                           (into (subvec segs 0 i) (subvec segs (inc ^long i))))
+                (conj txs [:del segments-dbi [term-id seg-no] :int-int]))
+            (let [seg [seg-no
+                       (if (< ^double (bound-weight (.-scoring engine) tf norm)
+                              ^double smw)
+                         smw
+                         (list-max-weight engine term-id ssl))
+                       ssl]]
+              (cache-put engine [:get-segments term-id] (assoc segs i seg))
+              (conj txs [:put segments-dbi [term-id seg-no] seg
+                         :int-int :term-info]))))
+        []))))
+
 (defn- remove-doc*
   [^SearchEngine engine doc-id doc-ref]
   (let [txs           (FastList.)
-        norms         ^IntShortHashMap (.-norms engine)
-        norm          (.get norms doc-id)
-        terms-dbi     (.-terms-dbi engine)
+        norm          (.get ^ConcurrentShortArray (.-norms engine) doc-id)
+        term-ids      (doc-ref->term-ids engine doc-ref)
         positions-dbi (.-positions-dbi engine)
         cache         (.-cache engine)]
-    (doseq [term-id (doc-ref->term-ids engine doc-ref)]
-      (let [[term [_ mw sl]] (term-id->term-info engine term-id)]
-        (when-let [tf (sl/get sl doc-id)]
-          (.add txs [:put terms-dbi term
-                     [term-id
-                      (del-max-weight sl doc-id mw tf norm)
-                      (sl/remove sl doc-id)]
-                     :string :term-info])
-          (-> cache
-              (lru/-del [:get-term-info term])
-              (lru/-del [:get-pos-info doc-id term-id]))))
-      (.add txs [:del positions-dbi [doc-id term-id] :int-int]))
+    (write-state
+      engine
+      (fn []
+        (doseq [term-id term-ids]
+          (let [[term base] (term-id->term-info engine term-id)]
+            (.addAll txs (remove-posting engine term-id term base doc-id
+                                         norm))
+            (lru/-del cache [:get-pos-info doc-id term-id]))
+          (.add txs [:del positions-dbi [doc-id term-id] :int-int]))
+        ;; the norm is kept, as searches in flight may still score the doc
+        (.remove ^SpillableIntObjMap (.-docs engine) doc-id)
+        (.addAndGet ^AtomicLong (.-total-norm engine) (- norm))
+        (.incrementAndGet ^AtomicLong (.-generation engine))))
     (.add txs [:del (.-docs-dbi engine) doc-ref :data])
-    (.remove ^SpillableIntObjMap (.-docs engine) doc-id)
-    (.remove norms doc-id)
+    (.add txs (journal engine [:del-doc doc-id]))
     (l/transact-kv (.-lmdb engine) txs)
     (-> cache
         (lru/-del [:doc-ref->id doc-ref])
         (lru/-del [:doc-ref->term-ids doc-ref])))
+  (schedule-snapshot engine)
   :doc-removed)
 
+(defn- add-posting
+  "Add the posting of a doc to a term, return the txs needed. Postings go
+  to the base term-info until it is full, then to the last segment of the
+  term, so the cost of adding a posting does not grow with doc frequency."
+  [^SearchEngine engine term [tid mw sl :as base] doc-id tf norm]
+  (let [segs (get-segments engine tid)]
+    (if (and (empty? segs) (< ^long (sl/size sl) (.-segment-size engine)))
+      (let [term-info [tid (add-max-weight (.-scoring engine) mw tf norm)
+                       (sl/set sl doc-id tf)]]
+        (cache-put engine [:get-term-info term] term-info)
+        [[:put (.-terms-dbi engine) term term-info :string :term-info]])
+      (let [[seg-no smw ssl] (peek segs)
+            tail?            (and seg-no
+                                  (< ^long (sl/size ssl)
+                                     (.-segment-size engine)))
+            [seg-no smw ssl] (if tail?
+                               [seg-no smw ssl]
+                               [(inc (long (or seg-no 0))) 0.0
+                                (sl/sparse-arraylist)])
+            seg              [seg-no
+                              (add-max-weight (.-scoring engine) smw tf norm)
+                              (sl/set ssl doc-id tf)]
+            segs             (if tail? (conj (pop segs) seg) (conj segs seg))]
+        (cache-put engine [:get-segments tid] segs)
+        (when (< (.-max-segments engine) (count segs))
+          (schedule-compaction engine term))
+        [[:put (.-segments-dbi engine) [tid seg-no] seg :int-int :term-info]]))))
+
 (defn- add-doc*
-  [^SearchEngine engine doc-ref doc-text]
-  (let [result          ((.-analyzer engine) doc-text)
-        new-terms       ^UnifiedMap (collect-terms result)
-        unique          (.size new-terms)
+  [^SearchEngine engine doc-ref ^UnifiedMap new-terms]
+  (let [norm            (doc-norm (.-scoring engine) (.size new-terms)
+                                  (doc-length new-terms))
         doc-id          (.incrementAndGet ^AtomicInteger (.-max-doc engine))
         term-set        (IntHashSet.)
         txs             (FastList.)
-        terms-dbi       (.-terms-dbi engine)
         positions-dbi   (.-positions-dbi engine)
         terms           ^SpillableIntObjMap (.-terms engine)
         max-term        (.-max-term engine)
         index-position? (.-index-position? engine)]
-    (.put ^SpillableIntObjMap (.-docs engine) doc-id doc-ref)
-    (.put ^IntShortHashMap (.-norms engine) doc-id unique)
-    (doseq [^Map$Entry kv (.entrySet new-terms)]
-      (let [term                                            (.getKey kv)
-            [^IntArrayList positions ^IntArrayList offsets] (.getValue kv)
-            tf                                              (.size positions)
-
-            [tid mw sl]
-            (or (get-term-info engine term)
-                [(let [new-tid (.incrementAndGet ^AtomicInteger max-term)]
-                   (.put terms new-tid term)
-                   new-tid)
-                 0.0
-                 (sl/sparse-arraylist)])
-
-            term-info
-            [tid (add-max-weight mw tf unique) (sl/set sl doc-id tf)]]
-        (.add txs [:put terms-dbi term term-info :string :term-info])
-        (if index-position?
-          (let [pos-info [(.toArray positions) (.toArray offsets)]]
-            (.add txs [:put positions-dbi [doc-id tid]
-                       pos-info :int-int :pos-info]))
-          (.add ^IntHashSet term-set (int tid)))))
+    ;; set before the doc is visible
+    (.set ^ConcurrentShortArray (.-norms engine) doc-id norm)
+    (.add txs (journal engine [:add-doc doc-id doc-ref norm]))
+    (write-state
+      engine
+      (fn []
+        (.put ^SpillableIntObjMap (.-docs engine) doc-id doc-ref)
+        (.addAndGet ^AtomicLong (.-total-norm engine) norm)
+        (doseq [^Map$Entry kv (.entrySet new-terms)]
+          (let [term       (.getKey kv)
+                [^IntArrayList positions
+                 ^IntArrayList offsets] (.getValue kv)
+                tf         (.size positions)
+
+                [tid :as base]
+                (or (get-term-info engine term)
+                    [(let [new-tid (.incrementAndGet ^AtomicInteger max-term)]
+                       (.put terms new-tid term)
+                       (.add txs (journal engine [:add-term new-tid term]))
+                       new-tid)
+                     0.0
+                     (sl/sparse-arraylist)])]
+            (.addAll txs (add-posting engine term base doc-id tf norm))
+            (.addAll txs (add-block-weight engine tid doc-id tf norm))
+            (if index-position?
+              (let [pos-info [(.toArray positions) (.toArray offsets)]]
+                (.add txs [:put positions-dbi [doc-id tid]
+                           pos-info :int-int :pos-info]))
+              (.add ^IntHashSet term-set (int tid)))))
+        (.incrementAndGet ^AtomicLong (.-generation engine))))
     (let [term-ar  (.toArray ^IntHashSet term-set)
-          doc-info [doc-id unique term-ar]]
+          doc-info [doc-id norm term-ar]]
       (.add txs [:put (.-docs-dbi engine) doc-ref doc-info
                  :data :doc-info])
       (l/transact-kv (.-lmdb engine) txs)))
+  (schedule-snapshot engine)
   :doc-added)
 
 (defn- hydrate-query
@@ -519,56 +1245,301 @@
   (into []
         (comp
           (map (fn [[term freq]]
-                 (when-let [[id mw ^SparseIntArrayList sl]
-                            (get-term-info engine term)]
-                   (let [df (sl/size sl)
-                         sl (sl/->SparseIntArrayList
-                              (doto (FastRankRoaringBitmap.)
-                                (.or ^RoaringBitmap (.-indices sl)))
-                              (.-items sl))]
+                 (when-let [[tid :as base] (get-term-info engine term)]
+                   (let [segs        (get-segments engine tid)
+                         [id mw sl]  (merge-term-info base segs)
+                         ;; writers change the cached lists in place, a
+                         ;; merged list is already a copy
+                         sl          (if (seq segs) sl (sl/copy-list sl))
+                         df          (sl/size sl)]
                      {:df df
                       :id id
                       :mw mw
                       :sl sl
+                      :bk (get-blocks engine id)
                       :tm term
-                      :wq (* ^double (tf* freq)
-                             ^double (idf df (.get max-doc)))}))))
+                      :wq (query-weight (.-scoring engine) freq df
+                                        (.get max-doc))}))))
           (filter map?))
         (frequencies tokens)))
 
+(defn- scan-terms
+  "Return up to `n` terms starting with `prefix` that satisfy the predicate,
+  in the order of the terms. The scan stops at the first term without the
+  prefix, so no upper bound is needed, which a string could not give for
+  all the characters after the prefix."
+  [^SearchEngine engine ^String prefix pred ^long n]
+  (let [res (FastList.)]
+    (l/visit (.-lmdb engine) (.-terms-dbi engine)
+             (fn [kv]
+               (let [^String term (b/read-buffer (l/k kv) :string)]
+                 (if (.startsWith term prefix)
+                   (when (pred term)
+                     (.add res term)
+                     (when (<= n (.size res)) :datalevin/terminate-visit))
+                   :datalevin/terminate-visit)))
+             (if (s/blank? prefix) [:all] [:at-least prefix]) :string)
+    res))
+
+(defn- within-edits?
+  "Return true if the Levenshtein distance of two strings is at most `k`"
+  [^String a ^String b ^long k]
+  (let [la (.length a)
+        lb (.length b)]
+    (when (<= (Math/abs (- la lb)) k)
+      (loop [i    1
+             prev (int-array (range (inc lb)))]
+        (if (< la i)
+          (<= (aget prev lb) k)
+          (let [cur (int-array (inc lb))
+                ca  (.charAt a (dec i))]
+            (aset cur 0 (int i))
+            (let [low (loop [j 1 low i]
+                        (if (<= j lb)
+                          (let [d (min (inc (aget prev j))
+                                       (inc (aget cur (dec j)))
+                                       (+ (aget prev (dec j))
+                                          (if (= ca (.charAt b (dec j))) 0 1)))]
+                            (aset cur j (int d))
+                            (recur (inc j) (min low d)))
+                          low))]
+              ;; stop when all the distances in the row are already too far
+              (when (<= ^long low k)
+                (recur (inc i) cur)))))))))
+
+(defn- wildcard-pattern
+  "Convert a wildcard term, where `*` matches any number of characters and
+  `?` matches one character, to a regex"
+  [^String term]
+  (re-pattern
+    (s/join (map (fn [c]
+                   (case c
+                     \* ".*"
+                     \? "."
+                     (java.util.regex.Pattern/quote (str c))))
+                 term))))
+
+(defn- expand-term
+  [^SearchEngine engine expand term {:keys [max-edits max-expansions]
+                                     :or   {max-edits      1
+                                            max-expansions
+                                            c/+search-max-expansions+}}]
+  (case expand
+    :prefix   (scan-terms engine term any? max-expansions)
+    :wildcard (let [literal (first (s/split term #"[*?]" 2))
+                    pattern (wildcard-pattern term)]
+                (scan-terms engine literal #(re-matches pattern %)
+                            max-expansions))
+    ;; the first character is assumed to be right, as Lucene does by default
+    :fuzzy    (scan-terms engine (subs term 0 (Character/charCount
+                                            (.codePointAt ^String term 0)))
+                          #(within-edits? term % max-edits) max-expansions)
+    (u/raise "Unknown term expansion" {:expand expand})))
+
+(defn- wildcard-tokens
+  "Return the wildcard tokens of a query, split on white space, as the
+  analyzer removes the wildcard characters. The other characters of a token
+  go through the query analyzer, so they are normalized as the indexed terms
+  are, and are kept as they are if the analyzer drops them, e.g. a stop
+  word."
+  [^SearchEngine engine query]
+  (let [analyzer (.-query-analyzer engine)]
+    (for [word  (s/split (s/trim query) #"\s+")
+          :when (not (s/blank? word))]
+      (s/join (map (fn [part]
+                     (if (re-matches #"[*?]+" part)
+                       part
+                       (let [terms (map first (analyzer part))]
+                         (if (= 1 (count terms)) (first terms) part))))
+                   (re-seq #"[*?]+|[^*?]+" word))))))
+
+(defn- expand-tokens
+  "Expand each query token into the indexed terms it matches"
+  [^SearchEngine engine query analyzed {:keys [expand] :as opts}]
+  (let [tokens (if (= expand :wildcard)
+                 (wildcard-tokens engine query)
+                 (map first analyzed))]
+    (into [] (mapcat #(expand-term engine expand % opts)) tokens)))
+
 (defn- get-doc-ref
-  [^SearchEngine engine doc-filter [_ doc-id]]
-  (when-let [doc-ref ((.-docs engine) doc-id)]
-    (when (doc-filter doc-ref) doc-ref)))
+  [^SearchEngine engine [_ _ doc-id]]
+  (read-state engine #((.-docs engine) doc-id)))
 
-(defn- get-offsets
+(defn- get-pos-info
+  "Return [positions offsets] of a term in a doc"
   [^SearchEngine engine doc-id term-id]
-  (peek (lru/-get
-          (.-cache engine) [:get-pos-info doc-id term-id]
-          #(l/get-value (.-lmdb engine) (.-positions-dbi engine)
-                        [doc-id term-id] :int-int :pos-info true))))
+  (lru/-get
+    (.-cache engine) [:get-pos-info doc-id term-id]
+    #(l/get-value (.-lmdb engine) (.-positions-dbi engine)
+                  [doc-id term-id] :int-int :pos-info true)))
+
+(defn- get-positions
+  ^ints [^SearchEngine engine doc-id term-id]
+  (first (get-pos-info engine doc-id term-id)))
+
+(defn- hits-offsets
+  "Return a map of doc id to a map of term id to offsets, for the query terms
+  in the docs of the hits. Rather than looking up each doc and term, the docs
+  are read in key order, each with one cursor pass over the range of its
+  query terms in positions-dbi."
+  [^SearchEngine engine terms hits]
+  (let [lmdb  (.-lmdb engine)
+        dbi   (.-positions-dbi engine)
+        tids  (keys terms)
+        lo    (apply min tids)
+        hi    (apply max tids)
+        load  (fn [did-offsets kv]
+                (let [[_ tid] (b/read-buffer (l/k kv) :int-int)]
+                  (when (contains? terms tid)
+                    (vswap! did-offsets assoc! tid
+                            (peek (b/read-buffer (l/v kv) :pos-info))))))]
+    (persistent!
+      (reduce
+        (fn [res did]
+          (let [did-offsets (volatile! (transient {}))]
+            (l/visit lmdb dbi #(load did-offsets %)
+                     [:closed [did lo] [did hi]] :int-int)
+            (assoc! res did (persistent! @did-offsets))))
+        (transient {})
+        (sort (map peek hits))))))
 
 (defn- add-offsets
-  [^SearchEngine engine doc-filter terms [_ doc-id :as result]]
-  (when-let [doc-ref (get-doc-ref engine doc-filter result)]
-    [doc-ref
-     (sequence
-       (comp (map (fn [tid]
-                 (when-let [offsets (get-offsets engine doc-id tid)]
-                   [(terms tid) (apply vector offsets)])))
-          (remove nil? ))
-       (keys terms))]))
+  [^SearchEngine engine terms offsets [_ _ doc-id :as result]]
+  (when-let [doc-ref (get-doc-ref engine result)]
+    (let [did-offsets (offsets doc-id)]
+      [doc-ref
+       (sequence
+         (comp (map (fn [tid]
+                   (when-let [offsets (did-offsets tid)]
+                     [(terms tid) (apply vector offsets)])))
+            (remove nil? ))
+         (keys terms))])))
+
+(defn- doc-filter-bitmap
+  "Materialize a doc filter set of doc-refs into a bitmap of the allowed doc
+  ids, so it can be applied to the postings before scoring. The doc-refs are
+  looked up directly, costing in proportion to the size of the set."
+  ^RoaringBitmap [^SearchEngine engine doc-filter]
+  (let [bm (RoaringBitmap.)]
+    (doseq [doc-ref doc-filter]
+      (when-let [doc-id (doc-ref->id engine doc-ref)]
+        (.add bm (int doc-id))))
+    bm))
+
+(defn- doc-filter-pred
+  "Return a test of doc ids for a doc filter predicate. It is only called on
+  docs that score high enough to be hits, at most once for a doc in a
+  search, so the cost does not grow with the number of docs."
+  [^SearchEngine engine doc-filter]
+  (let [passed (RoaringBitmap.)
+        failed (RoaringBitmap.)]
+    (fn [did]
+      (let [did (int did)]
+        (cond
+          (.contains passed did) true
+          (.contains failed did) false
+          :else
+          (let [doc-ref (get-doc-ref engine [nil nil did])
+                ok?     (boolean (and (some? doc-ref) (doc-filter doc-ref)))]
+            (.add (if ok? passed failed) did)
+            ok?))))))
 
 (defn- display-xf
-  [^SearchEngine engine doc-filter display tms]
+  [^SearchEngine engine display tms hits]
   (case display
-    :offsets (comp (map #(add-offsets engine doc-filter tms %))
-                (remove nil?))
-    :refs    (comp (map #(get-doc-ref engine doc-filter %))
+    :offsets (let [offsets (hits-offsets engine tms hits)]
+               (comp (map #(add-offsets engine tms offsets %))
+                  (remove nil?)))
+    :refs    (comp (map #(get-doc-ref engine %))
                 (remove nil?))))
 
+(defn- phrase-match?
+  "Return true if the terms occur in the doc at the same relative positions
+  as in the query. `qpos` is a list of [term-id query-position]."
+  [^SearchEngine engine did qpos]
+  (let [[tid0 ^long p0] (first qpos)
+        ^ints anchors   (get-positions engine did tid0)
+        others          (mapv (fn [[tid ^long p]]
+                                [(get-positions engine did tid) (- p p0)])
+                              (rest qpos))]
+    (some (fn [^long a]
+            (every? (fn [[^ints ps ^long d]]
+                      (<= 0 (Arrays/binarySearch ps (int (+ a d)))))
+                    others))
+          anchors)))
+
+(defn- proximity-match?
+  "Return true if the terms occur in the doc within a window of at most
+  `distance` positions, i.e. the first and the last of them are at most
+  `distance` apart, regardless of order"
+  [^SearchEngine engine did tids ^long distance]
+  (let [^"[[I" lists (into-array (map #(get-positions engine did %) tids))
+        k            (alength lists)
+        idx          (int-array k)]
+    (loop []
+      (let [[lo hi mi]
+            (loop [i 0 lo Long/MAX_VALUE hi Long/MIN_VALUE mi 0]
+              (if (< i k)
+                (let [p (long (aget ^ints (aget lists i) (aget idx i)))]
+                  (if (< p lo)
+                    (recur (inc i) p (max hi p) i)
+                    (recur (inc i) lo (max hi p) mi)))
+                [lo hi mi]))
+            mi (long mi)]
+        (cond
+          (<= (- ^long hi ^long lo) distance) true
+          (= (inc (aget idx mi)) (alength ^ints (aget lists mi))) false
+          :else (do (aset idx mi (inc (aget idx mi)))
+                    (recur)))))))
+
+(defn- positional-search
+  "Search docs that have all the query terms in a phrase, or within a
+  proximity distance. The docs having all the terms are found by
+  intersecting the posting bitmaps and scored as usual, and the positions
+  are only read for the docs that score high enough to make the top."
+  [^SearchEngine engine analyzed qterms ^long top ^RoaringBitmap allowed
+   accept? proximity shared]
+  (when-not (.-index-position? engine)
+    (u/raise "Phrase or proximity search requires `:index-position?` true"
+             {}))
+  (let [tids  (mapv :id qterms)
+        t->id (zipmap (map :tm qterms) tids)]
+    ;; docs cannot match if some of the terms are not indexed
+    (when (every? t->id (map first analyzed))
+      (let [sls    (zipmap tids (map :sl qterms))
+            wqs    (get-ws tids qterms :wq)
+            weigh  (doc-weigher (.-scoring engine) (.-norms engine)
+                                (.-total-norm engine)
+                                (count (.-docs engine)))
+            qpos   (mapv (fn [[term pos]] [(t->id term) pos]) analyzed)
+            match? (if proximity
+                     #(proximity-match? engine % tids proximity)
+                     #(phrase-match? engine % qpos))
+            bm     (FastAggregation/and
+                     ^"[Lorg.roaringbitmap.RoaringBitmap;"
+                     (into-array RoaringBitmap
+                                 (cond-> (map #(.-indices ^SparseIntArrayList %)
+                                              (vals sls))
+                                   allowed (conj allowed))))
+            iter   (.getIntIterator ^RoaringBitmap bm)
+            tao    (count tids)
+            pq     (TopScores. top)]
+        (while (.hasNext iter)
+          (let [did   (.next iter)
+                score (reduce (fn [^double score tid]
+                                (+ score ^double
+                                   (real-score tid did (sl/get (sls tid) did)
+                                               wqs weigh)))
+                              0.0 tids)]
+            (when (and (< (current-threshold pq shared tao) ^double score)
+                       (match? did))
+              (insert-hit pq shared tao score did accept?))))
+        [(persistent! (pouring (transient []) pq (RoaringBitmap.) tao))
+         (zipmap tids (map :tm qterms))]))))
+
 (defn- open-dbis
-  [lmdb terms-dbi docs-dbi positions-dbi]
+  [lmdb terms-dbi docs-dbi positions-dbi segments-dbi blocks-dbi journal-dbi
+   snapshot-dbi]
   (assert (not (l/closed-kv? lmdb)) "LMDB env is closed.")
 
   ;; term -> term-id,max-weight,doc-freq
@@ -578,7 +1549,19 @@
   (l/open-dbi lmdb docs-dbi {:key-size c/+max-key-size+})
 
   ;; doc-id,term-id -> positions,offsets
-  (l/open-dbi lmdb positions-dbi {:key-size (* 2 Integer/BYTES)}))
+  (l/open-dbi lmdb positions-dbi {:key-size (* 2 Integer/BYTES)})
+
+  ;; term-id,segment-no -> segment-no,max-weight,doc-freq
+  (l/open-dbi lmdb segments-dbi {:key-size (* 2 Integer/BYTES)})
+
+  ;; term-id,block-no -> max-weight
+  (l/open-dbi lmdb blocks-dbi {:key-size (* 2 Integer/BYTES)})
+
+  ;; seq -> change of in-memory state since snapshot
+  (l/open-dbi lmdb journal-dbi {:key-size Long/BYTES})
+
+  ;; kind,chunk-no -> snapshot chunk of in-memory state
+  (l/open-dbi lmdb snapshot-dbi {:key-size (* 2 Integer/BYTES)}))
 
 (defn- init-terms
   [lmdb terms-dbi]
@@ -594,7 +1577,7 @@
 
 (defn- init-docs
   [lmdb docs-dbi]
-  (let [norms  (IntShortHashMap.)
+  (let [norms  (ConcurrentShortArray.)
         docs   (sp/new-spillable-intobj-map)
         max-id (volatile! 0)
         load   (fn [kv]
@@ -604,36 +1587,177 @@
                        norm (b/read-buffer vb :short)]
                    (when (< ^int @max-id ^int id) (vreset! max-id id))
                    (.put ^SpillableIntObjMap docs id ref)
-                   (.put norms id norm)))]
+                   (.set norms id norm)))]
     (l/visit lmdb docs-dbi load [:all-back])
     [@max-id norms docs]))
 
+(defn- load-snapshot
+  "Load the in-memory state from the snapshot, return nil if there is none"
+  [lmdb snapshot-dbi]
+  (when-let [{:keys [watermark max-doc max-term doc-chunks term-chunks]}
+             (l/get-value lmdb snapshot-dbi [0 0] :int-int :data)]
+    (let [norms (ConcurrentShortArray.)
+          docs  (sp/new-spillable-intobj-map)
+          terms (sp/new-spillable-intobj-map)]
+      (dotimes [i doc-chunks]
+        (let [^ints dids (l/get-value lmdb snapshot-dbi [1 i] :int-int :ints)
+              ^ints ns   (l/get-value lmdb snapshot-dbi [2 i] :int-int :ints)
+              refs       (l/get-value lmdb snapshot-dbi [3 i] :int-int :data)]
+          (dotimes [j (alength dids)]
+            (let [did (aget dids j)]
+              (.set norms did (short (aget ns j)))
+              (.put ^SpillableIntObjMap docs did (nth refs j))))))
+      (dotimes [i term-chunks]
+        (let [^ints tids (l/get-value lmdb snapshot-dbi [4 i] :int-int :ints)
+              ts         (l/get-value lmdb snapshot-dbi [5 i] :int-int :data)]
+          (dotimes [j (alength tids)]
+            (.put ^SpillableIntObjMap terms (aget tids j) (nth ts j)))))
+      {:watermark watermark
+       :max-doc   max-doc
+       :max-term  max-term
+       :norms     norms
+       :docs      docs
+       :terms     terms})))
+
+(defn- replay-journal
+  "Apply the changes made after the snapshot to the in-memory state,
+  return the state with the latest journal seq"
+  [lmdb journal-dbi {:keys [watermark norms docs terms] :as state}]
+  (let [max-doc  (volatile! (:max-doc state))
+        max-term (volatile! (:max-term state))
+        jseq     (volatile! watermark)
+        replay   (fn [kv]
+                   (let [[op id x norm] (b/read-buffer (l/v kv) :data)]
+                     (vreset! jseq (b/read-buffer (l/k kv) :id))
+                     (case op
+                       :add-doc  (do (.put ^SpillableIntObjMap docs id x)
+                                     (.set ^ConcurrentShortArray norms id
+                                           (short norm))
+                                     (vswap! max-doc max id))
+                       :del-doc  (do (.remove ^SpillableIntObjMap docs id)
+                                     (.set ^ConcurrentShortArray norms id
+                                           (short 0)))
+                       :add-term (do (.put ^SpillableIntObjMap terms id x)
+                                     (vswap! max-term max id)))))]
+    (l/visit lmdb journal-dbi replay [:greater-than watermark] :id)
+    (assoc state :max-doc @max-doc :max-term @max-term :jseq @jseq)))
+
+(defn- scan-state
+  "Build the in-memory state by scanning the whole index"
+  [lmdb docs-dbi terms-dbi journal-dbi]
+  (let [[max-doc norms docs] (init-docs lmdb docs-dbi)
+        [max-term terms]     (init-terms lmdb terms-dbi)
+        jseq                 (or (first (l/get-first lmdb journal-dbi
+                                                 [:all-back] :id))
+                                 0)]
+    ;; without a snapshot, count the scanned docs as unsaved changes
+    {:watermark (- ^long jseq (count docs))
+     :jseq      jseq
+     :max-doc   max-doc
+     :max-term  max-term
+     :norms     norms
+     :docs      docs
+     :terms     terms}))
+
+(defn- init-blocks
+  "Compute the score blocks of all terms, for indices created before
+  score blocks were introduced"
+  [lmdb terms-dbi segments-dbi blocks-dbi scoring
+   ^ConcurrentShortArray norms]
+  (when (and (zero? ^long (l/entries lmdb blocks-dbi))
+             (< 0 ^long (l/entries lmdb terms-dbi)))
+    (let [^UnifiedMap all (UnifiedMap.)
+          add             (fn [tid ^SparseIntArrayList sl]
+                            (let [^IntDoubleHashMap blocks
+                                  (or (.get all tid)
+                                      (let [m (IntDoubleHashMap.)]
+                                        (.put all tid m)
+                                        m))]
+                              (doseq [did (.-indices sl)]
+                                (let [block (block-no did)
+                                      w     (bound-weight scoring
+                                                          (sl/get sl did)
+                                                          (.get norms did))]
+                                  (when (< (.getIfAbsent blocks block -1.0)
+                                           ^double w)
+                                    (.put blocks block w))))))]
+      (l/visit lmdb terms-dbi
+               (fn [kv]
+                 (let [[tid _ sl] (b/read-buffer (l/v kv) :term-info)]
+                   (add tid sl)))
+               [:all] :string)
+      (l/visit lmdb segments-dbi
+               (fn [kv]
+                 (let [[_ _ sl] (b/read-buffer (l/v kv) :term-info)]
+                   (add (nth (b/read-buffer (l/k kv) :int-int) 0) sl)))
+               [:all] :int-int)
+      (let [txs (FastList.)]
+        (doseq [^Map$Entry kv (.entrySet all)]
+          (let [tid                     (.getKey kv)
+                ^IntDoubleHashMap blocks (.getValue kv)]
+            (doseq [block (.toArray (.keySet blocks))]
+              (.add txs [:put blocks-dbi [tid block] (.get blocks block)
+                         :int-int :double]))))
+        (l/transact-kv lmdb txs)))))
+
 (defn new-search-engine
   ([lmdb]
    (new-search-engine lmdb nil))
-  ([lmdb {:keys [domain analyzer query-analyzer index-position?]
-          :or   {domain          "datalevin"
-                 analyzer        en-analyzer
-                 index-position? false}}]
+  ([lmdb {:keys [domain analyzer query-analyzer index-position?
+                 segment-size max-segments scoring result-cache-size]
+          :or   {domain            "datalevin"
+                 analyzer          en-analyzer
+                 index-position?   false
+                 segment-size      c/+search-segment-size+
+                 max-segments      c/+search-max-segments+
+                 result-cache-size 0}}]
    (let [terms-dbi     (str domain "/" c/terms)
          docs-dbi      (str domain "/" c/docs)
-         positions-dbi (str domain "/" c/positions)]
-     (open-dbis lmdb terms-dbi docs-dbi positions-dbi)
-     (let [[max-doc norms docs] (init-docs lmdb docs-dbi)
-           [max-term terms]     (init-terms lmdb terms-dbi)]
-       (->SearchEngine lmdb
+         positions-dbi (str domain "/" c/positions)
+         segments-dbi  (str domain "/" c/segments)
+         blocks-dbi    (str domain "/" c/blocks)
+         journal-dbi   (str domain "/" c/journal)
+         snapshot-dbi  (str domain "/" c/snapshot)]
+     (open-dbis lmdb terms-dbi docs-dbi positions-dbi segments-dbi blocks-dbi
+                journal-dbi snapshot-dbi)
+     (let [{:keys [watermark jseq max-doc max-term norms docs terms]}
+           (if-let [state (load-snapshot lmdb snapshot-dbi)]
+             (replay-journal lmdb journal-dbi state)
+             (scan-state lmdb docs-dbi terms-dbi journal-dbi))
+
+           scoring (->scoring scoring)
+
+           engine
+           (->SearchEngine lmdb
                        analyzer
                        (or query-analyzer analyzer)
                        terms-dbi
                        docs-dbi
                        positions-dbi
+                       segments-dbi
+                       blocks-dbi
+                       journal-dbi
+                       snapshot-dbi
                        terms
                        docs
                        norms
+                       (AtomicLong. (.sum ^ConcurrentShortArray norms))
+                       scoring
                        (lru/cache 100000 :constant)
+                       (StampedLock.)
+                       (AtomicLong.)
+                       (when (< 0 ^long result-cache-size)
+                         (WeightedLRUCache. result-cache-size))
                        (AtomicInteger. max-doc)
                        (AtomicInteger. max-term)
-                       index-position?)))))
+                       (AtomicLong. jseq)
+                       (AtomicLong. watermark)
+                       index-position?
+                       segment-size
+                       max-segments)]
+       (init-blocks lmdb terms-dbi segments-dbi blocks-dbi scoring norms)
+       (schedule-snapshot engine)
+       engine))))
 
 (defn transfer
   "transfer state of an existing engine to an new engine that has a
@@ -645,63 +1769,153 @@
                   (.-terms-dbi old)
                   (.-docs-dbi old)
                   (.-positions-dbi old)
+                  (.-segments-dbi old)
+                  (.-blocks-dbi old)
+                  (.-journal-dbi old)
+                  (.-snapshot-dbi old)
                   (.-terms old)
                   (.-docs old)
                   (.-norms old)
+                  (.-total-norm old)
+                  (.-scoring old)
                   (.-cache old)
+                  (.-lock old)
+                  (.-generation old)
+                  (.-result-cache old)
                   (.-max-doc old)
                   (.-max-term old)
-                  (.-index-position? old)))
+                  (.-journal-seq old)
+                  (.-snapshot-seq old)
+                  (.-index-position? old)
+                  (.-segment-size old)
+                  (.-max-segments old)))
 
 (defprotocol IIndexWriter
   (write [this doc-ref doc-text])
   (commit [this]))
 
+(defonce ^:private ^ExecutorService federator
+  (Executors/newCachedThreadPool
+    (reify ThreadFactory
+      (newThread [_ r]
+        (doto (Thread. ^Runnable r "datalevin-search-federator")
+          (.setDaemon true))))))
+
+(defn federated-search
+  "Search several local search engines, e.g. of different domains, in
+  parallel, one task per engine, and merge their results into one top.
+  `engines` is a map of keys to search engines. The engines share the
+  score a hit has to beat to make the merged top, so an engine stops early
+  when the others have already found enough better hits. Return a list of
+  [key doc-ref], or [key doc-ref [[term [offset ...]] ...]] if `:display`
+  is `:offsets`. Takes the same options as `search`."
+  ([engines query]
+   (federated-search engines query {}))
+  ([engines query {:keys [display ^long top phrase? proximity expand]
+                   :or   {display :refs
+                          top     10}
+                   :as   opts}]
+   (when-not (s/blank? query)
+     (when (and expand (or phrase? proximity))
+       (u/raise "Term expansion does not work with phrase or proximity search"
+                {:expand expand}))
+     (doseq [[k engine] engines]
+       (when-not (instance? SearchEngine engine)
+         (u/raise "Federated search only works with local search engines"
+                  {:engine k})))
+     (let [opts   (assoc opts :top top)
+           shared (shared-top top)
+           tasks  (mapv (fn [[_ ^SearchEngine engine]]
+                          ^Callable
+                          #(search-hits engine query
+                                        ((.-query-analyzer engine) query)
+                                        opts shared))
+                        engines)
+           hits   (mapcat (fn [[k engine] ^Future fut]
+                            (when-let [[hits tms]
+                                       (try (.get fut)
+                                            (catch ExecutionException e
+                                              (throw (.getCause e))))]
+                              (map (fn [hit] [k engine tms hit]) hits)))
+                          engines (.invokeAll federator tasks))
+           merged (->> hits
+                       (sort-by (fn [[_ _ _ [tao score]]] [tao score])
+                                #(compare %2 %1))
+                       (take top))
+           xfs    (into {}
+                        (map (fn [[k group]]
+                               (let [[_ engine tms] (first group)]
+                                 [k (display-xf engine display tms
+                                                (map peek group))])))
+                        (group-by first merged))]
+       (keep (fn [[k _ _ hit]]
+               (when-let [res (first (sequence (xfs k) [hit]))]
+                 (if (= display :offsets)
+                   (into [k] res)
+                   [k res])))
+             merged)))))
+
+(declare index-terms)
+
+(defn- analyzer-pool
+  ^ExecutorService [^long threads]
+  (let [n (AtomicInteger.)]
+    (Executors/newFixedThreadPool
+      threads
+      (reify ThreadFactory
+        (newThread [_ r]
+          (doto (Thread. ^Runnable r
+                         (str "datalevin-search-analyzer-" (.incrementAndGet n)))
+            (.setDaemon true)))))))
+
+(defn- merge-pending
+  "merge analyzed documents in submission order, until at most `n` remain"
+  [writer ^ArrayDeque pending ^long n]
+  (while (< n (.size pending))
+    (let [[doc-ref ^Future fut] (.poll pending)]
+      (index-terms writer doc-ref
+                   (try (.get fut)
+                        (catch ExecutionException e
+                          (throw (.getCause e))))))))
+
 (deftype IndexWriter [lmdb
                       analyzer
                       terms-dbi
                       docs-dbi
                       positions-dbi
+                      segments-dbi
+                      blocks-dbi
+                      journal-dbi
                       ^AtomicInteger max-doc
                       ^AtomicInteger max-term
+                      ^AtomicLong journal-seq
                       index-position?
+                      scoring
                       ^FastList txs
-                      ^UnifiedMap hit-terms]
+                      ^FastList seg-dels
+                      ^UnifiedMap hit-terms
+                      ^UnifiedMap hit-blocks
+                      ^long threads
+                      ^ArrayDeque pending
+                      ^:volatile-mutable ^ExecutorService pool]
   IIndexWriter
-  (write [_ doc-ref doc-text]
+  (write [this doc-ref doc-text]
     (when-not (s/blank? doc-text)
-      (let [result    (analyzer doc-text)
-            new-terms ^UnifiedMap (collect-terms result)
-            unique    (.size new-terms)
-            doc-id    (.incrementAndGet ^AtomicInteger max-doc)
-            term-set  (IntHashSet.)
-            batch     (if index-position? 250000 500)]
-        (doseq [^Map$Entry kv (.entrySet new-terms)]
-          (let [term                                            (.getKey kv)
-                [^IntArrayList positions ^IntArrayList offsets] (.getValue kv)
-                tf                                              (.size positions)
-
-                [tid mw sl]
-                (or (.get hit-terms term)
-                    (l/get-value lmdb terms-dbi term :string :term-info true)
-                    [(.incrementAndGet ^AtomicInteger max-term)
-                     0.0
-                     (sl/sparse-arraylist)])]
-            (.put hit-terms term
-                  [tid (add-max-weight mw tf unique) (sl/set sl doc-id tf)])
-            (if index-position?
-              (.add txs [:put positions-dbi [doc-id tid]
-                         [(.toArray positions) (.toArray offsets)]
-                         :int-int :pos-info])
-              (.add ^IntHashSet term-set (int tid)))))
-        (.add txs [:put docs-dbi doc-ref
-                   [doc-id unique (.toArray ^IntHashSet term-set)]
-                   :data :doc-info])
-        (when (< batch (.size txs))
-          (l/transact-kv lmdb txs)
-          (.clear txs)))))
-
-  (commit [_]
+      (if (< 1 threads)
+        ;; analyze in the worker threads, merge in the calling thread
+        (do (when-not pool (set! pool (analyzer-pool threads)))
+            (.add pending
+                  [doc-ref (.submit pool
+                                    ^Callable #(analyze-terms
+                                                 analyzer doc-text))])
+            (merge-pending this pending (* 64 threads)))
+        (index-terms this doc-ref (analyze-terms analyzer doc-text)))))
+
+  (commit [this]
+    (merge-pending this pending 0)
+    (when pool
+      (.shutdown pool)
+      (set! pool nil))
     (l/transact-kv lmdb txs)
     (.clear txs)
     (l/with-transaction-kv [db lmdb]
@@ -711,7 +1925,85 @@
             (.remove iter)
             (l/transact-kv db [[:put terms-dbi (.getKey kv) (.getValue kv)
                                 :string :term-info]])
-            (recur iter)))))))
+            (recur iter))))
+      (l/transact-kv db seg-dels)
+      (doseq [^Map$Entry kv (.entrySet hit-blocks)]
+        (let [tid                     (.getKey kv)
+              ^IntDoubleHashMap blocks (.getValue kv)]
+          (l/transact-kv
+            db (into []
+                     (keep (fn [block]
+                             (let [w   (.get blocks (int block))
+                                   old (l/get-value db blocks-dbi [tid block]
+                                                    :int-int :double)]
+                               (when (or (nil? old) (< ^double old w))
+                                 [:put blocks-dbi [tid block] w
+                                  :int-int :double]))))
+                     (.toArray (.keySet blocks)))))))
+    (.clear seg-dels)
+    (.clear hit-blocks)))
+
+(defn- index-terms
+  [^IndexWriter writer doc-ref ^UnifiedMap new-terms]
+  (let [lmdb             (.-lmdb writer)
+        journal-dbi      (.-journal-dbi writer)
+        ^AtomicLong jseq (.-journal-seq writer)
+        terms-dbi        (.-terms-dbi writer)
+        segments-dbi     (.-segments-dbi writer)
+        positions-dbi    (.-positions-dbi writer)
+        index-position?  (.-index-position? writer)
+        ^FastList txs    (.-txs writer)
+        ^FastList dels   (.-seg-dels writer)
+        ^UnifiedMap hit  (.-hit-terms writer)
+        ^UnifiedMap hbs  (.-hit-blocks writer)
+        scoring          (.-scoring writer)
+        norm             (doc-norm scoring (.size new-terms)
+                                   (doc-length new-terms))
+        doc-id           (.incrementAndGet ^AtomicInteger (.-max-doc writer))
+        term-set         (IntHashSet.)
+        batch            (if index-position? 250000 500)]
+    (doseq [^Map$Entry kv (.entrySet new-terms)]
+      (let [term                                            (.getKey kv)
+            [^IntArrayList positions ^IntArrayList offsets] (.getValue kv)
+            tf                                              (.size positions)
+
+            [tid mw sl]
+            (or (.get hit term)
+                (when-let [[tid :as base]
+                           (l/get-value lmdb terms-dbi term
+                                        :string :term-info true)]
+                  ;; fold existing segments into the base
+                  (let [segs (read-segments lmdb segments-dbi tid)]
+                    (doseq [[seg-no] segs]
+                      (.add dels [:del segments-dbi [tid seg-no] :int-int]))
+                    (merge-term-info base segs)))
+                (let [tid (.incrementAndGet ^AtomicInteger (.-max-term writer))]
+                  (.add txs [:put journal-dbi (.incrementAndGet jseq)
+                             [:add-term tid term] :id :data])
+                  [tid 0.0 (sl/sparse-arraylist)]))]
+        (.put hit term
+              [tid (add-max-weight scoring mw tf norm) (sl/set sl doc-id tf)])
+        (let [^IntDoubleHashMap blocks (or (.get hbs tid)
+                                           (let [m (IntDoubleHashMap.)]
+                                             (.put hbs tid m)
+                                             m))
+              block                    (block-no doc-id)
+              w                        (bound-weight scoring tf norm)]
+          (when (< (.getIfAbsent blocks block -1.0) ^double w)
+            (.put blocks block w)))
+        (if index-position?
+          (.add txs [:put positions-dbi [doc-id tid]
+                     [(.toArray positions) (.toArray offsets)]
+                     :int-int :pos-info])
+          (.add ^IntHashSet term-set (int tid)))))
+    (.add txs [:put (.-docs-dbi writer) doc-ref
+               [doc-id norm (.toArray ^IntHashSet term-set)]
+               :data :doc-info])
+    (.add txs [:put journal-dbi (.incrementAndGet jseq)
+               [:add-doc doc-id doc-ref norm] :id :data])
+    (when (< batch (.size txs))
+      (l/transact-kv lmdb txs)
+      (.clear txs))))
 
 (defn- init-max-id [lmdb dbi]
   (let [max-id (volatile! 0)
@@ -724,24 +2016,49 @@
 (defn search-index-writer
   ([lmdb]
    (search-index-writer lmdb nil))
-  ([lmdb {:keys [domain analyzer index-position?]
+  ([lmdb {:keys [domain analyzer index-position? threads scoring]
           :or   {domain          "datalevin"
                  analyzer        en-analyzer
-                 index-position? false}}]
+                 index-position? false
+                 threads         1}}]
    (let [terms-dbi     (str domain "/" c/terms)
          docs-dbi      (str domain "/" c/docs)
-         positions-dbi (str domain "/" c/positions)]
-     (open-dbis lmdb terms-dbi docs-dbi positions-dbi)
-     (->IndexWriter lmdb
-                    analyzer
-                    terms-dbi
-                    docs-dbi
-                    positions-dbi
-                    (AtomicInteger. (init-max-id lmdb docs-dbi))
-                    (AtomicInteger. (init-max-id lmdb terms-dbi))
-                    index-position?
-                    (FastList.)
-                    (UnifiedMap.)))))
+         positions-dbi (str domain "/" c/positions)
+         segments-dbi  (str domain "/" c/segments)
+         blocks-dbi    (str domain "/" c/blocks)
+         journal-dbi   (str domain "/" c/journal)
+         snapshot-dbi  (str domain "/" c/snapshot)]
+     (open-dbis lmdb terms-dbi docs-dbi positions-dbi segments-dbi blocks-dbi
+                journal-dbi snapshot-dbi)
+     (let [{:keys [watermark max-doc max-term]
+            :or   {watermark 0 max-doc 0 max-term 0}}
+           (l/get-value lmdb snapshot-dbi [0 0] :int-int :data)]
+       (->IndexWriter lmdb
+                      analyzer
+                      terms-dbi
+                      docs-dbi
+                      positions-dbi
+                      segments-dbi
+                      blocks-dbi
+                      journal-dbi
+                      (AtomicInteger. (max ^long max-doc
+                                           ^long (init-max-id lmdb docs-dbi)))
+                      (AtomicInteger. (max ^long max-term
+                                           ^long (init-max-id lmdb terms-dbi)))
+                      (AtomicLong. (max ^long watermark
+                                        ^long (or (first (l/get-first
+                                                           lmdb journal-dbi
+                                                           [:all-back] :id))
+                                                  0)))
+                      index-position?
+                      (->scoring scoring)
+                      (FastList.)
+                      (FastList.)
+                      (UnifiedMap.)
+                      (UnifiedMap.)
+                      threads
+                      (ArrayDeque.)
+                      nil)))))
 
 (comment
   (def lmdb (time (l/open-kv "search-bench/data/wiki-datalevin-all")))
@@ -3,8 +3,11 @@
   engine to customize search"
   (:require [clojure.string :as str]
             [datalevin.interpret :as i]
-            [datalevin.constants :as c])
-  (:import [java.text Normalizer Normalizer$Form]))
+            [datalevin.constants :as c]
+            [datalevin.search :as sc])
+  (:import [java.text Normalizer Normalizer$Form]
+           [datalevin.utl TokenFilter SplitTokenizer LowerCaseFilter
+            StopWordFilter]))
 
 (defn create-analyzer
   "Creates an analyzer fn ready for use in search.
@@ -111,3 +114,39 @@
             (let [token (subs s last-separator-end string-end)]
               (vswap! res conj [token pos last-separator-end])))))
       @res)))
+
+(def lower-case-stream-filter
+  "This stream token filter converts tokens to lower case."
+  LowerCaseFilter/INSTANCE)
+
+(defn create-stop-words-stream-filter
+  "Creates a stream token filter that removes the given stop words. Tokens
+  are compared as they are, so this filter should come after
+  `lower-case-stream-filter`."
+  [words]
+  (StopWordFilter. (vec words)))
+
+(def en-stop-words-stream-filter
+  "This stream token filter removes \"empty\" tokens (for english language)."
+  (create-stop-words-stream-filter c/en-stop-words-set))
+
+(defn create-stream-analyzer
+  "Creates an analyzer that streams tokens through a reusable char buffer,
+  so no string is created for the tokens that are filtered out, and terms
+  are collected without intermediate vectors during indexing.
+
+  `opts` have the following keys:
+
+  * `:separators` is a string of characters to split the text on, in
+  addition to white space. Default is the punctuations of `en-analyzer`.
+
+  * `:token-filters` is an ordered list of `datalevin.utl.TokenFilter`, which
+  transform the term characters in place, e.g. `lower-case-stream-filter`,
+  `en-stop-words-stream-filter`, or custom ones.
+
+  Unlike `create-analyzer`, the result is not an interpreted function, so it
+  can only be used with a local search engine."
+  [{:keys [separators token-filters]
+    :or   {separators (apply str c/en-punctuations-set)}}]
+  (sc/stream-analyzer
+    (SplitTokenizer. separators (into-array TokenFilter token-filters))))
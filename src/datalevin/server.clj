@@ -1062,6 +1062,7 @@
    'fetch
    'populated?
    'size
+   'estimate-size
    'head
    'tail
    'slice
@@ -1584,6 +1585,10 @@
   [^Server server ^SelectionKey skey {:keys [args writing?]}]
   (wrap-error (normal-dt-store-handler size)))
 
+(defn- estimate-size
+  [^Server server ^SelectionKey skey {:keys [args writing?]}]
+  (wrap-error (normal-dt-store-handler estimate-size)))
+
 (defn- head
   [^Server server ^SelectionKey skey {:keys [args writing?]}]
   (wrap-error (normal-dt-store-handler head)))
@@ -6,10 +6,10 @@
   (:import
    [java.io Writer DataInput DataOutput]
    [java.nio ByteBuffer]
-   [datalevin.utl GrowingIntArray]
+   [datalevin.utl ChunkedIntArray]
    [me.lemire.integercompression IntCompressor]
    [me.lemire.integercompression.differential IntegratedIntCompressor]
-   [org.roaringbitmap RoaringBitmap]))
+   [org.roaringbitmap RoaringBitmap FastRankRoaringBitmap]))
 
 (defprotocol ICompressor
   (compress [this obj])
@@ -75,7 +75,7 @@
   (deserialize [this bf] "serialize from a bytebuffer"))
 
 (deftype SparseIntArrayList [^RoaringBitmap indices
-                             ^GrowingIntArray items]
+                             ^ChunkedIntArray items]
   ISparseIntArrayList
   (contains-index? [_ index]
     (.contains indices (int index)))
@@ -122,8 +122,8 @@
   (.serialize x out))
 
 (nippy/extend-freeze
-  GrowingIntArray :dtlv/gia
-  [^GrowingIntArray x ^DataOutput out]
+  ChunkedIntArray :dtlv/gia
+  [^ChunkedIntArray x ^DataOutput out]
   (let [ar        (.toArray  x)
         osize     (alength ar)
         comp?     (< 3 osize)
@@ -150,7 +150,7 @@
         comp? (neg? csize)
         size  (if comp? (- csize) csize)
         car   (int-array size)
-        items (GrowingIntArray.)]
+        items (ChunkedIntArray.)]
     (dotimes [i size] (aset car i (.readInt in)))
     (.addAll items
              (if comp?
@@ -165,7 +165,7 @@
 
 (defn sparse-arraylist
   ([]
-   (->SparseIntArrayList (RoaringBitmap.) (GrowingIntArray.)))
+   (->SparseIntArrayList (RoaringBitmap.) (ChunkedIntArray.)))
   ([m]
    (let [ssl (sparse-arraylist)]
      (doseq [[k v] m] (set ssl k v))
@@ -175,6 +175,35 @@
      (dorun (map #(set ssl %1 %2) ks vs))
      ssl)) )
 
+(defn copy-list
+  "Return an independent copy of a sparse list, with indices in a bitmap
+  that is fast to rank"
+  [^SparseIntArrayList sl]
+  (->SparseIntArrayList
+    (doto (FastRankRoaringBitmap.) (.or ^RoaringBitmap (.-indices sl)))
+    (.copy ^ChunkedIntArray (.-items sl))))
+
+(defn concat-lists
+  "Concatenate sparse lists into a new one, with indices in a bitmap that is
+  fast to rank. The lists must be ordered, i.e. all indices of a list are
+  less than those of the lists after it."
+  [sls]
+  (let [ars   (mapv #(.toArray ^ChunkedIntArray (.-items ^SparseIntArrayList %))
+                    sls)
+        total (reduce (fn [^long s ^ints ar] (+ s (alength ar))) 0 ars)
+        items (int-array total)]
+    (reduce (fn [^long pos ^ints ar]
+              (let [n (alength ar)]
+                (System/arraycopy ar 0 items pos n)
+                (+ pos n)))
+            0 ars)
+    (->SparseIntArrayList
+      (let [bm (FastRankRoaringBitmap.)]
+        ;; the lists are ordered, so the containers are mostly appended
+        (doseq [^SparseIntArrayList sl sls] (.or bm (.-indices sl)))
+        bm)
+      (doto (ChunkedIntArray.) (.addAll items)))))
+
 (defmethod print-method SparseIntArrayList
   [^SparseIntArrayList s ^Writer w]
   (.write w (str "#datalevin/SparseList "))
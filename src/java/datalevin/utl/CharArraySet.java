@@ -0,0 +1,59 @@
+package datalevin.utl;
+
+import java.util.Collection;
+
+/**
+ * An immutable set of strings that can be looked up with a char buffer,
+ * using open addressing.
+ */
+public final class CharArraySet {
+
+    private final String[] table;
+    private final int mask;
+
+    public CharArraySet(Collection<String> words) {
+        int cap = Integer.highestOneBit(Math.max(words.size(), 1) * 4);
+        table = new String[cap];
+        mask = cap - 1;
+        for (String w : words) {
+            char[] cs = w.toCharArray();
+            int i = CharArraySet.hash(cs, cs.length) & mask;
+            while (table[i] != null && !table[i].equals(w)) {
+                i = (i + 1) & mask;
+            }
+            table[i] = w;
+        }
+    }
+
+    static int hash(char[] buf, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + buf[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    static boolean matches(String s, char[] buf, int len) {
+        if (s.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != buf[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean contains(char[] buf, int len) {
+        int i = hash(buf, len) & mask;
+        String s;
+        while ((s = table[i]) != null) {
+            if (matches(s, buf, len)) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+}
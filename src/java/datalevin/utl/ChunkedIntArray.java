@@ -0,0 +1,275 @@
+package datalevin.utl;
+
+import java.util.Arrays;
+
+/**
+ * An int array list stored in fixed capacity chunks, so that inserting or
+ * removing at an arbitrary position only moves the values within a chunk,
+ * instead of the whole tail of the array.
+ *
+ * The starting index of each chunk is kept in a sorted array, so a value is
+ * located by a binary search over the chunks.
+ *
+ * A chunk holds at most CHUNK_SIZE values, but its backing array is only as
+ * large as needed and grows on demand, as most lists are short.
+ */
+public final class ChunkedIntArray {
+
+    public static final int CHUNK_SIZE = 1024;
+
+    static final int INITIAL_CAPACITY = 16;
+
+    private int[][] chunks;
+    private int[] lens;     // number of values in each chunk
+    private int[] starts;   // index of the first value of each chunk
+    private int nchunks;
+    private int size;
+
+    public ChunkedIntArray() {
+        clear();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the chunk containing an index, or the last chunk if the index
+     * is at the end of the array
+     */
+    private int chunkOf(int index) {
+        int lo = 0;
+        int hi = nchunks - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= index) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private void checkIndex(int index, int bound) {
+        if (index < 0 || index >= bound) {
+            throw new IndexOutOfBoundsException(
+                "Index " + index + " out of bounds for size " + size);
+        }
+    }
+
+    private void ensureChunks(int n) {
+        if (n > chunks.length) {
+            int len = Math.max(n, chunks.length * 3 / 2 + 1);
+            chunks = Arrays.copyOf(chunks, len);
+            lens = Arrays.copyOf(lens, len);
+            starts = Arrays.copyOf(starts, len);
+        }
+    }
+
+    /**
+     * Make room for one more value in chunk c, which is not full
+     */
+    private int[] ensureCapacity(int c) {
+        int[] chunk = chunks[c];
+        if (lens[c] == chunk.length) {
+            int len = Math.min(CHUNK_SIZE,
+                               Math.max(INITIAL_CAPACITY, chunk.length << 1));
+            chunk = Arrays.copyOf(chunk, len);
+            chunks[c] = chunk;
+        }
+        return chunk;
+    }
+
+    /**
+     * Open an empty chunk with the given capacity at position c
+     */
+    private void openChunk(int c, int start, int capacity) {
+        ensureChunks(nchunks + 1);
+        int tail = nchunks - c;
+        if (tail > 0) {
+            System.arraycopy(chunks, c, chunks, c + 1, tail);
+            System.arraycopy(lens, c, lens, c + 1, tail);
+            System.arraycopy(starts, c, starts, c + 1, tail);
+        }
+        chunks[c] = new int[capacity];
+        lens[c] = 0;
+        starts[c] = start;
+        nchunks++;
+    }
+
+    private void closeChunk(int c) {
+        int tail = nchunks - c - 1;
+        if (tail > 0) {
+            System.arraycopy(chunks, c + 1, chunks, c, tail);
+            System.arraycopy(lens, c + 1, lens, c, tail);
+            System.arraycopy(starts, c + 1, starts, c, tail);
+        }
+        nchunks--;
+        chunks[nchunks] = null;
+    }
+
+    /**
+     * Move the upper half of a full chunk into a new chunk after it
+     */
+    private void splitChunk(int c) {
+        int half = lens[c] >>> 1;
+        int moved = lens[c] - half;
+        openChunk(c + 1, starts[c] + half, moved);
+        System.arraycopy(chunks[c], half, chunks[c + 1], 0, moved);
+        lens[c] = half;
+        lens[c + 1] = moved;
+    }
+
+    /**
+     * Insert a value at a specified index of the array, grow the array
+     */
+    public void insert(int index, int value) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException(
+                "Index " + index + " out of bounds for size " + size);
+        }
+        int c;
+        if (index == size) {
+            // appending
+            c = nchunks - 1;
+            if (c < 0 || lens[c] == CHUNK_SIZE) {
+                c++;
+                openChunk(c, size, INITIAL_CAPACITY);
+            }
+        } else {
+            c = chunkOf(index);
+            if (lens[c] == CHUNK_SIZE) {
+                splitChunk(c);
+                if (index >= starts[c + 1]) {
+                    c++;
+                }
+            }
+        }
+        int[] chunk = ensureCapacity(c);
+        int i = index - starts[c];
+        int tail = lens[c] - i;
+        if (tail > 0) {
+            System.arraycopy(chunk, i, chunk, i + 1, tail);
+        }
+        chunk[i] = value;
+        lens[c]++;
+        for (int j = c + 1; j < nchunks; j++) {
+            starts[j]++;
+        }
+        size++;
+    }
+
+    /**
+     * Set a value at a specified index inside the array, does not grow
+     */
+    public void set(int index, int value) {
+        checkIndex(index, size);
+        int c = chunkOf(index);
+        chunks[c][index - starts[c]] = value;
+    }
+
+    /**
+     * Replace the content of the array with the given values
+     */
+    public void addAll(int[] values) {
+        clear();
+        int n = values.length;
+        ensureChunks((n + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int pos = 0; pos < n; pos += CHUNK_SIZE) {
+            int len = Math.min(CHUNK_SIZE, n - pos);
+            chunks[nchunks] = Arrays.copyOfRange(values, pos, pos + len);
+            lens[nchunks] = len;
+            starts[nchunks] = pos;
+            nchunks++;
+        }
+        size = n;
+    }
+
+    /**
+     * Remove a value at a specified index
+     */
+    public void remove(int index) {
+        checkIndex(index, size);
+        int c = chunkOf(index);
+        int[] chunk = chunks[c];
+        int i = index - starts[c];
+        int tail = lens[c] - i - 1;
+        if (tail > 0) {
+            System.arraycopy(chunk, i + 1, chunk, i, tail);
+        }
+        lens[c]--;
+        for (int j = c + 1; j < nchunks; j++) {
+            starts[j]--;
+        }
+        if (lens[c] == 0) {
+            closeChunk(c);
+        }
+        size--;
+    }
+
+    /**
+     * Constructs and returns a simple array containing the same data as held
+     * in this array.
+     */
+    public int[] toArray() {
+        int[] a = new int[size];
+        for (int c = 0; c < nchunks; c++) {
+            System.arraycopy(chunks[c], 0, a, starts[c], lens[c]);
+        }
+        return a;
+    }
+
+    /**
+     * Return an independent copy of this array, chunk by chunk
+     */
+    public ChunkedIntArray copy() {
+        ChunkedIntArray c = new ChunkedIntArray();
+        c.ensureChunks(nchunks);
+        for (int i = 0; i < nchunks; i++) {
+            c.chunks[i] = Arrays.copyOf(chunks[i], lens[i]);
+            c.lens[i] = lens[i];
+            c.starts[i] = starts[i];
+        }
+        c.nchunks = nchunks;
+        c.size = size;
+        return c;
+    }
+
+    public void clear() {
+        chunks = new int[4][];
+        lens = new int[4];
+        starts = new int[4];
+        nchunks = 0;
+        size = 0;
+    }
+
+    /**
+     * Retrieve the value present at an index position in the array.
+     */
+    public int get(int index) {
+        checkIndex(index, size);
+        int c = chunkOf(index);
+        return chunks[c][index - starts[c]];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+
+        if (!(o instanceof ChunkedIntArray)) {
+            return false;
+        }
+
+        ChunkedIntArray g = (ChunkedIntArray) o;
+
+        return size == g.size() && Arrays.equals(toArray(), g.toArray());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+}
@@ -0,0 +1,75 @@
+package datalevin.utl;
+
+import java.util.Arrays;
+
+/**
+ * A short array indexed by non-negative int, growing in fixed size chunks,
+ * where absent values are 0.
+ *
+ * One thread at a time may set values while other threads read them
+ * without locking. A chunk is never moved once allocated, and the chunk
+ * directory is replaced as a whole when it grows, so a reader never sees a
+ * partially copied array.
+ */
+public final class ConcurrentShortArray {
+
+    public static final int CHUNK_BITS = 12;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile short[][] chunks;
+
+    public ConcurrentShortArray() {
+        clear();
+    }
+
+    public short get(int index) {
+        short[][] cs = chunks;
+        int c = index >>> CHUNK_BITS;
+        if (c < cs.length) {
+            short[] chunk = cs[c];
+            if (chunk != null) {
+                return chunk[index & CHUNK_MASK];
+            }
+        }
+        return 0;
+    }
+
+    public void set(int index, short value) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Negative index " + index);
+        }
+        short[][] cs = chunks;
+        int c = index >>> CHUNK_BITS;
+        if (c >= cs.length || cs[c] == null) {
+            if (value == 0) {
+                return;
+            }
+            short[][] ncs = Arrays.copyOf(cs, Math.max(c + 1, cs.length));
+            ncs[c] = new short[CHUNK_SIZE];
+            ncs[c][index & CHUNK_MASK] = value;
+            chunks = ncs;
+            return;
+        }
+        cs[c][index & CHUNK_MASK] = value;
+    }
+
+    /**
+     * Sum of all the values
+     */
+    public long sum() {
+        long s = 0;
+        for (short[] chunk : chunks) {
+            if (chunk != null) {
+                for (short v : chunk) {
+                    s += v;
+                }
+            }
+        }
+        return s;
+    }
+
+    public void clear() {
+        chunks = new short[0][];
+    }
+}
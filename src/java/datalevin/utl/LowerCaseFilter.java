@@ -0,0 +1,14 @@
+package datalevin.utl;
+
+public final class LowerCaseFilter implements TokenFilter {
+
+    public static final LowerCaseFilter INSTANCE = new LowerCaseFilter();
+
+    @Override
+    public int filter(char[] buf, int len) {
+        for (int i = 0; i < len; i++) {
+            buf[i] = Character.toLowerCase(buf[i]);
+        }
+        return len;
+    }
+}
@@ -0,0 +1,72 @@
+package datalevin.utl;
+
+/**
+ * Split a text into tokens on white space and the given separator chars,
+ * then pass each token through the filters in order. The chars of a token
+ * are collected in a buffer that is reused for all the tokens of a text.
+ *
+ * Positions count all the tokens, including those dropped by the filters.
+ */
+public final class SplitTokenizer implements TokenStream {
+
+    private final boolean[] ascii = new boolean[128];
+    private final String separators;
+    private final TokenFilter[] filters;
+
+    public SplitTokenizer(String separators, TokenFilter... filters) {
+        this.separators = separators;
+        this.filters = filters;
+        for (int i = 0; i < separators.length(); i++) {
+            char c = separators.charAt(i);
+            if (c < 128) {
+                ascii[c] = true;
+            }
+        }
+    }
+
+    private boolean isSeparator(char c) {
+        if (c < 128) {
+            return ascii[c] || Character.isWhitespace(c);
+        }
+        return Character.isWhitespace(c) || separators.indexOf(c) >= 0;
+    }
+
+    private void emit(TokenConsumer consumer, char[] buf, int len,
+                      int position, int offset) {
+        for (TokenFilter f : filters) {
+            len = f.filter(buf, len);
+            if (len < 0) {
+                return;
+            }
+        }
+        consumer.accept(buf, len, position, offset);
+    }
+
+    @Override
+    public void tokenize(String text, TokenConsumer consumer) {
+        final int n = text.length();
+        char[] buf = new char[32];
+        int len = 0;
+        int pos = 0;
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (isSeparator(c)) {
+                if (len > 0) {
+                    emit(consumer, buf, len, pos++, start);
+                    len = 0;
+                }
+            } else {
+                if (len == 0) {
+                    start = i;
+                } else if (len == buf.length) {
+                    buf = java.util.Arrays.copyOf(buf, len << 1);
+                }
+                buf[len++] = c;
+            }
+        }
+        if (len > 0) {
+            emit(consumer, buf, len, pos, start);
+        }
+    }
+}
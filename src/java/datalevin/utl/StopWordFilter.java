@@ -0,0 +1,21 @@
+package datalevin.utl;
+
+import java.util.Collection;
+
+/**
+ * Drop the tokens that are stop words, without turning the term into a
+ * string.
+ */
+public final class StopWordFilter implements TokenFilter {
+
+    private final CharArraySet words;
+
+    public StopWordFilter(Collection<String> words) {
+        this.words = new CharArraySet(words);
+    }
+
+    @Override
+    public int filter(char[] buf, int len) {
+        return words.contains(buf, len) ? -1 : len;
+    }
+}
@@ -0,0 +1,124 @@
+package datalevin.utl;
+
+import java.util.Arrays;
+
+/**
+ * Collect the tokens of a doc into distinct terms with their positions and
+ * offsets. A string is only created for the first occurrence of a term,
+ * positions and offsets are kept in primitive arrays.
+ *
+ * Terms of `maxTermLength` chars or longer are ignored.
+ */
+public final class TermCollector implements TokenConsumer {
+
+    private final int maxTermLength;
+
+    private int[] table;    // entry index + 1, 0 for empty
+    private int mask;
+    private String[] terms;
+    private int[] hashes;
+    private int[][] positions;
+    private int[][] offsets;
+    private int[] counts;
+    private int size;
+
+    public TermCollector(int maxTermLength) {
+        this.maxTermLength = maxTermLength;
+        this.table = new int[64];
+        this.mask = 63;
+        this.terms = new String[16];
+        this.hashes = new int[16];
+        this.positions = new int[16][];
+        this.offsets = new int[16][];
+        this.counts = new int[16];
+    }
+
+    private void rehash() {
+        table = new int[table.length << 1];
+        mask = table.length - 1;
+        for (int e = 0; e < size; e++) {
+            int i = hashes[e] & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = e + 1;
+        }
+    }
+
+    private int newEntry(char[] buf, int len, int h) {
+        if (size == terms.length) {
+            int cap = size << 1;
+            terms = Arrays.copyOf(terms, cap);
+            hashes = Arrays.copyOf(hashes, cap);
+            positions = Arrays.copyOf(positions, cap);
+            offsets = Arrays.copyOf(offsets, cap);
+            counts = Arrays.copyOf(counts, cap);
+        }
+        int e = size++;
+        terms[e] = new String(buf, 0, len);
+        hashes[e] = h;
+        positions[e] = new int[4];
+        offsets[e] = new int[4];
+        return e;
+    }
+
+    @Override
+    public void accept(char[] buf, int len, int position, int offset) {
+        if (len >= maxTermLength) {
+            return;
+        }
+        int h = CharArraySet.hash(buf, len);
+        int i = h & mask;
+        int e;
+        while (true) {
+            int slot = table[i];
+            if (slot == 0) {
+                e = newEntry(buf, len, h);
+                table[i] = e + 1;
+                if (size << 1 > table.length) {
+                    rehash();
+                }
+                break;
+            }
+            e = slot - 1;
+            if (hashes[e] == h && CharArraySet.matches(terms[e], buf, len)) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        int n = counts[e];
+        if (n == positions[e].length) {
+            positions[e] = Arrays.copyOf(positions[e], n << 1);
+            offsets[e] = Arrays.copyOf(offsets[e], n << 1);
+        }
+        positions[e][n] = position;
+        offsets[e][n] = offset;
+        counts[e] = n + 1;
+    }
+
+    /**
+     * Number of distinct terms
+     */
+    public int size() {
+        return size;
+    }
+
+    public String term(int e) {
+        return terms[e];
+    }
+
+    /**
+     * Term frequency
+     */
+    public int count(int e) {
+        return counts[e];
+    }
+
+    public int[] positions(int e) {
+        return Arrays.copyOf(positions[e], counts[e]);
+    }
+
+    public int[] offsets(int e) {
+        return Arrays.copyOf(offsets[e], counts[e]);
+    }
+}
@@ -0,0 +1,11 @@
+package datalevin.utl;
+
+/**
+ * Receives the tokens of a text one at a time. The term is passed as the
+ * first `len` chars of a buffer that is reused for the next token, so it
+ * must be copied if it is to be kept.
+ */
+public interface TokenConsumer {
+
+    void accept(char[] buf, int len, int position, int offset);
+}
@@ -0,0 +1,14 @@
+package datalevin.utl;
+
+/**
+ * A stage of token processing that works on the term chars in place.
+ */
+public interface TokenFilter {
+
+    /**
+     * Transform the first `len` chars of the buffer in place.
+     *
+     * @return the new length of the term, or -1 to drop the token
+     */
+    int filter(char[] buf, int len);
+}
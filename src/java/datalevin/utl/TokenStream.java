@@ -0,0 +1,10 @@
+package datalevin.utl;
+
+/**
+ * An analyzer that streams the tokens of a text to a consumer, instead of
+ * returning them as a list.
+ */
+public interface TokenStream {
+
+    void tokenize(String text, TokenConsumer consumer);
+}
@@ -0,0 +1,130 @@
+package datalevin.utl;
+
+/**
+ * A bounded min-heap of (score, doc id) pairs for collecting top-k search
+ * results, where the least scored pair can always be found in constant time.
+ * Scores and doc ids are kept in parallel primitive arrays, so no object is
+ * allocated when a pair is inserted.
+ *
+ * The heap is 1-based, index 0 of the arrays is unused.
+ */
+public final class TopScores {
+
+    private final int maxSize;
+    private final double[] scores;
+    private final int[] docs;
+    private int size = 0;
+
+    public TopScores(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException(
+                "maxSize must be >= 0; got: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        // allocate 1 extra when empty to avoid if statement in topScore()
+        final int heapSize = Math.max(maxSize, 1) + 1;
+        this.scores = new double[heapSize];
+        this.docs = new int[heapSize];
+    }
+
+    /**
+     * Insert a pair. When the heap is full, the pair replaces the least
+     * scored one only if it has a higher score.
+     *
+     * @return true if the pair is inserted
+     */
+    public boolean insert(double score, int doc) {
+        if (size < maxSize) {
+            size++;
+            scores[size] = score;
+            docs[size] = doc;
+            upHeap(size);
+            return true;
+        } else if (size > 0 && scores[1] < score) {
+            scores[1] = score;
+            docs[1] = doc;
+            downHeap(1);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Return the least score in constant time
+     */
+    public double topScore() {
+        return scores[1];
+    }
+
+    /**
+     * Return the doc id of the least score in constant time
+     */
+    public int topDoc() {
+        return docs[1];
+    }
+
+    /**
+     * Remove the least scored pair in log(size) time
+     */
+    public void pop() {
+        if (size > 0) {
+            scores[1] = scores[size];
+            docs[1] = docs[size];
+            size--;
+            downHeap(1);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    public boolean isFull() {
+        return size == maxSize;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    private void upHeap(int i) {
+        final double score = scores[i];
+        final int doc = docs[i];
+        int j = i >>> 1;
+        while (j > 0 && score < scores[j]) {
+            scores[i] = scores[j];
+            docs[i] = docs[j];
+            i = j;
+            j = j >>> 1;
+        }
+        scores[i] = score;
+        docs[i] = doc;
+    }
+
+    private void downHeap(int i) {
+        final double score = scores[i];
+        final int doc = docs[i];
+        int j = i << 1;
+        int k = j + 1;
+        if (k <= size && scores[k] < scores[j]) {
+            j = k;
+        }
+        while (j <= size && scores[j] < score) {
+            scores[i] = scores[j];
+            docs[i] = docs[j];
+            i = j;
+            j = i << 1;
+            k = j + 1;
+            if (k <= size && scores[k] < scores[j]) {
+                j = k;
+            }
+        }
+        scores[i] = score;
+        docs[i] = doc;
+    }
+}
@@ -0,0 +1,98 @@
+package datalevin.utl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread safe LRU cache bounded by the total weight of its entries, e.g.
+ * their estimated sizes in bytes, instead of their number. It also counts
+ * hits and misses.
+ */
+public final class WeightedLRUCache {
+
+    private static final class Entry {
+        final Object value;
+        final long weight;
+
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final long capacity;
+    private final LinkedHashMap<Object, Entry> map;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public WeightedLRUCache(long capacity) {
+        this.capacity = capacity;
+        this.map = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Return the cached value of a key, or null if absent
+     */
+    public synchronized Object get(Object key) {
+        Entry e = map.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.value;
+    }
+
+    /**
+     * Cache a value, evicting the least recently used entries as needed.
+     * A value heavier than the capacity is not cached.
+     */
+    public synchronized void put(Object key, Object value, long w) {
+        if (w > capacity) {
+            return;
+        }
+        Entry old = map.put(key, new Entry(value, w));
+        if (old != null) {
+            weight -= old.weight;
+        }
+        weight += w;
+        Iterator<Map.Entry<Object, Entry>> iter = map.entrySet().iterator();
+        while (weight > capacity && iter.hasNext()) {
+            weight -= iter.next().getValue().weight;
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+}
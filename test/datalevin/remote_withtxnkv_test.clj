@@ -26,6 +26,14 @@
         (d/abort-transact-kv db))
       (is (= [1 2] (d/get-value lmdb "a" 1 :data :data false))))
 
+    (testing "read snapshot is only in a transaction"
+      (is (thrown-with-msg? Exception #"Read snapshot is not supported"
+                            (d/with-read-snapshot [db lmdb]
+                              (d/get-value db "a" 1))))
+      (d/with-transaction-kv [db lmdb]
+        (d/with-read-snapshot [db' db]
+          (is (= [1 2] (d/get-value db' "a" 1 :data :data false))))))
+
     (d/close-kv lmdb)))
 
 (deftest concurrent-with-transaction-kv-test
@@ -38,6 +38,38 @@
     (l/close-kv lmdb)
     (u/delete-files dir)))
 
+(deftest get-first-gap-test
+  (let [dir  (u/tmp-dir (str "lmdb-test-" (UUID/randomUUID)))
+        lmdb (l/open-kv dir)]
+    (l/open-dbi lmdb "c" {:key-size (inc Long/BYTES) :val-size (inc Long/BYTES)})
+    (l/transact-kv lmdb (map (fn [k] [:put "c" k k :long :long])
+                             (range 0 100 2)))
+    (testing "start key present or absent"
+      (dotimes [_ 3]
+        (is (= [10 10] (l/get-first lmdb "c" [:at-least 10] :long :long)))
+        (is (= [12 12] (l/get-first lmdb "c" [:at-least 11] :long :long)))
+        (is (= [12 12] (l/get-first lmdb "c" [:greater-than 10] :long :long)))
+        (is (= [12 12] (l/get-first lmdb "c" [:greater-than 11] :long :long)))
+        (is (= [10 10] (l/get-first lmdb "c" [:at-most-back 10] :long :long)))
+        (is (= [10 10] (l/get-first lmdb "c" [:at-most-back 11] :long :long)))
+        (is (= [8 8] (l/get-first lmdb "c" [:less-than-back 10] :long :long)))
+        (is (= [98 98] (l/get-first lmdb "c" [:at-most-back 200] :long :long)))
+        (is (nil? (l/get-first lmdb "c" [:at-least 99] :long :long)))
+        (is (nil? (l/get-first lmdb "c" [:less-than-back 0] :long :long)))
+        (is (= [[10 10] [12 12]]
+               (l/get-range lmdb "c" [:closed 9 13] :long :long)))
+        (is (= [[12 12] [10 10]]
+               (l/get-range lmdb "c" [:open-back 14 8] :long :long)))))
+    (testing "scans inside a write transaction"
+      (l/with-transaction-kv [db lmdb]
+        (l/transact-kv db [[:put "c" 11 11 :long :long]])
+        (is (= [11 11] (l/get-first db "c" [:at-least 11] :long :long)))
+        (is (= 3 (l/range-count db "c" [:closed 10 12] :long)))
+        (l/abort-transact-kv db))
+      (is (= [12 12] (l/get-first lmdb "c" [:at-least 11] :long :long))))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
 (deftest range-seq-test
   (let [dir  (u/tmp-dir (str "range-seq-test-" (UUID/randomUUID)))
         lmdb (l/open-kv dir)]
@@ -4,6 +4,7 @@
    [datalevin.lmdb :as l]
    [datalevin.interpret :as i]
    [datalevin.core :as d]
+   [datalevin.constants :as c]
    [datalevin.sparselist :as sl]
    [datalevin.util :as u]
    [clojure.data.csv :as csv]
@@ -17,7 +18,9 @@
    [clojure.test :refer [deftest testing is use-fixtures]])
   (:import
    [java.util UUID ]
+   [java.util.concurrent.atomic AtomicInteger AtomicLong]
    [datalevin.sparselist SparseIntArrayList]
+   [datalevin.utl ConcurrentShortArray]
    [datalevin.search SearchEngine IndexWriter]))
 
 (use-fixtures :each db-fixture)
@@ -162,6 +165,18 @@
             [:doc5 [["red" [48]]]]]))
     (is (= (sut/search engine "red fox" {:doc-filter #(not= % :doc2)})
            [:doc1 :doc4 :doc5]))
+    (is (= (sut/search engine "red fox" {:doc-filter #(not= % :doc1)
+                                         :top        1})
+           [:doc4]))
+    (is (= (sut/search engine "red fox" {:doc-filter #{:doc5 :doc2 :doc9}})
+           [:doc2 :doc5]))
+    (is (empty? (sut/search engine "red fox" {:doc-filter #{:doc3}})))
+    (is (empty? (sut/search engine "red fox" {:doc-filter #{}})))
+    (let [tested (atom [])]
+      (sut/search engine "red fox" {:doc-filter #(do (swap! tested conj %)
+                                                     true)})
+      ;; only hits are tested, each once
+      (is (= (sort @tested) [:doc1 :doc2 :doc4 :doc5])))
     (is (= (sut/search engine "red dogs" {:display :offsets})
            [[:doc1 [["dogs" [43]] ["red" [10 39]]]]
             [:doc5 [["dogs" [52]] ["red" [48]]]]
@@ -175,6 +190,304 @@
     (l/close-kv lmdb)
     (u/delete-files dir)))
 
+(deftest phrase-proximity-test
+  (let [dir    (u/tmp-dir (str "phrase-" (UUID/randomUUID)))
+        lmdb   (l/open-kv dir)
+        engine ^SearchEngine (sut/new-search-engine
+                               lmdb {:index-position? true})
+        plain  (sut/new-search-engine lmdb {:domain "plain"})]
+    (add-docs sut/add-doc engine)
+
+    (is (= [:doc1 :doc5] (sut/search engine "red dogs" {:phrase? true})))
+    (is (= [:doc1] (sut/search engine "red fox" {:phrase? true})))
+    (is (empty? (sut/search engine "fox red" {:phrase? true})))
+    (is (= [:doc1] (sut/search engine "lazy red dogs" {:phrase? true})))
+    (is (= [:doc1] (sut/search engine "jumped over the lazy"
+                               {:phrase? true})))
+    (is (empty? (sut/search engine "red cat" {:phrase? true})))
+    (is (= [[:doc5 [["dogs" [52]] ["red" [48]]]]]
+           (sut/search engine "red dogs" {:phrase?    true
+                                          :doc-filter #(not= % :doc1)
+                                          :display    :offsets})))
+
+    (is (empty? (sut/search engine "quick fox" {:phrase? true})))
+    (is (empty? (sut/search engine "quick fox" {:proximity 1})))
+    (is (= [:doc1] (sut/search engine "quick fox" {:proximity 2})))
+    (is (= [:doc1 :doc5] (sut/search engine "dogs red" {:proximity 1})))
+    (is (= [:doc1] (sut/search engine "dogs red" {:proximity 1 :top 1})))
+
+    (sut/add-doc plain :doc1 "red dogs")
+    (is (thrown? Exception (sut/search plain "red dogs" {:phrase? true})))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
+(deftest bm25-test
+  (let [dir    (u/tmp-dir (str "bm25-" (UUID/randomUUID)))
+        lmdb   (l/open-kv dir)
+        engine ^SearchEngine (sut/new-search-engine
+                               lmdb {:scoring {:model :bm25 :k1 1.2 :b 0.75}})
+        model  (sut/bm25-scoring)
+        words  ["apple" "banana" "cherry" "date" "elder" "fig"]
+        docs   (into {}
+                     (map (fn [i]
+                            [i (s/join " " (repeatedly (inc (rand-int 30))
+                                                       #(rand-nth words)))]))
+                     (range 3000))
+        lens   (into {} (map (fn [[i text]] [i (count (s/split text #" "))]))
+                     docs)
+        avg    (/ (double (reduce + (vals lens))) (count docs))
+        ranked (fn [term]
+                 (->> docs
+                      (keep (fn [[i text]]
+                              (let [tf (count (filter #{term}
+                                                      (s/split text #" ")))]
+                                (when (< 0 tf)
+                                  [i (sut/term-weight model tf (lens i) avg)]))))
+                      (sort-by (comp - second))))]
+    (doseq [[i text] docs] (sut/add-doc engine i text))
+
+    (is (== (.get ^AtomicLong (.-total-norm engine))
+            (reduce + (vals lens))))
+    (doseq [term words]
+      (let [expected (ranked term)
+            kth      (second (nth expected 9))
+            weights  (into {} expected)
+            found    (sut/search engine term {:top 10})]
+        (is (= 10 (count found)))
+        ;; ties may come in any order
+        (is (every? #(<= (- ^double kth 1e-9) ^double (weights %)) found))))
+
+    (sut/remove-doc engine 0)
+    (is (== (.get ^AtomicLong (.-total-norm engine))
+            (- (reduce + (vals lens)) (lens 0))))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
+(deftest default-scoring-test
+  (let [dir    (u/tmp-dir (str "default-scoring-" (UUID/randomUUID)))
+        lmdb   (l/open-kv dir)
+        engine (sut/new-search-engine lmdb)]
+    (sut/add-doc engine 1 "The quick red fox jumped over the lazy red dogs.")
+    (sut/add-doc engine 2 "Mary had a little lamb whose fleece was red.")
+    (is (= [1 2] (sut/search engine "red fox")))
+    (l/close-kv lmdb)
+    (u/delete-files dir))
+  (let [dir    (u/tmp-dir (str "default-scoring-" (UUID/randomUUID)))
+        lmdb   (l/open-kv dir)
+        writer ^IndexWriter (sut/search-index-writer lmdb)]
+    (sut/write writer 1 "The red fox lives in the red barn.")
+    (sut/commit writer)
+    (is (= [1] (sut/search (sut/new-search-engine lmdb) "red")))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
+(deftest term-expansion-test
+  (let [dir    (u/tmp-dir (str "expand-" (UUID/randomUUID)))
+        lmdb   (l/open-kv dir)
+        engine (sut/new-search-engine lmdb)]
+    (add-docs sut/add-doc engine)
+
+    (is (= [:doc4 :doc2] (sut/search engine "fle" {:expand :prefix})))
+    (is (= #{:doc1 :doc5 :doc3}
+           (set (sut/search engine "dog mob" {:expand :prefix}))))
+    (is (empty? (sut/search engine "zebra" {:expand :prefix})))
+    (is (= [:doc2] (sut/search engine "l?mb" {:expand :wildcard})))
+    (is (= [:doc4 :doc2] (sut/search engine "Fl*ce" {:expand :wildcard})))
+    (is (= #{:doc1 :doc5} (set (sut/search engine "*ogs" {:expand :wildcard}))))
+    (is (= [:doc4 :doc2] (sut/search engine "flece" {:expand :fuzzy})))
+    (is (= [:doc3] (sut/search engine "mobi" {:expand :fuzzy})))
+    (is (empty? (sut/search engine "mabe" {:expand :fuzzy})))
+    (is (= #{:doc2 :doc3} (set (sut/search engine "mabe" {:expand    :fuzzy
+                                                          :max-edits 2}))))
+    (is (= 1 (count (#'sut/expand-tokens engine "f" [["f" 0 0]]
+                     {:expand :prefix :max-expansions 1}))))
+    (is (thrown? Exception (sut/search engine "fle" {:expand  :prefix
+                                                     :phrase? true})))
+    (is (= [:doc4 :doc2] (sut/search engine "FLE*" {:expand :wildcard})))
+
+    ;; a supplementary character sorts above any bound made of chars
+    (sut/add-doc engine :emoji "ab\uD83D\uDE00x abz \uD83D\uDE00ab")
+    (is (= #{"ab\uD83D\uDE00x" "abz"}
+           (set (#'sut/expand-tokens engine "ab" [["ab" 0 0]]
+                                     {:expand :prefix}))))
+    (is (= ["\uD83D\uDE00ab"]
+           (#'sut/expand-tokens engine "\uD83D\uDE00ac" [["\uD83D\uDE00ac" 0 0]]
+                                {:expand :fuzzy})))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
+(deftest segments-test
+  (let [dir          (u/tmp-dir (str "segments-" (UUID/randomUUID)))
+        lmdb         (l/open-kv dir)
+        engine       ^SearchEngine (sut/new-search-engine
+                                     lmdb {:index-position? true
+                                           :segment-size    1
+                                           :max-segments    100})
+        terms-dbi    (.-terms-dbi engine)
+        segments-dbi (.-segments-dbi engine)]
+    (add-docs sut/add-doc engine)
+
+    (let [[tid _ sl] (l/get-value lmdb terms-dbi "red" :string :term-info true)]
+      (is (= (seq (.-indices ^SparseIntArrayList sl)) [1]))
+      (is (= (l/range-count lmdb segments-dbi
+                            [:closed [tid 0] [tid Integer/MAX_VALUE]]
+                            :int-int)
+             3)))
+    (is (= [:doc1 :doc4 :doc2 :doc5] (sut/search engine "red cat")))
+    (is (= (sut/search engine "red fox" {:display :offsets})
+           [[:doc1 [["fox" [14]] ["red" [10 39]]]]
+            [:doc4 [["red" [18]]]]
+            [:doc2 [["red" [40]]]]
+            [:doc5 [["red" [48]]]]]))
+
+    (sut/remove-doc engine :doc4)
+    (is (= [:doc1 :doc2 :doc5] (sut/search engine "red")))
+
+    (sut/compact engine)
+    (is (= (l/range-count lmdb segments-dbi [:all] :int-int) 0))
+    (let [[_ _ sl] (l/get-value lmdb terms-dbi "red" :string :term-info true)]
+      (is (= sl (sl/sparse-arraylist {1 2 2 1 5 1}))))
+    (is (= [:doc1 :doc2 :doc5] (sut/search engine "red")))
+
+    (sut/add-doc engine :doc4 "The robber wore a red fleece jacket.")
+    (is (= #{:doc4 :doc1 :doc2 :doc5} (set (sut/search engine "red"))))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
+(deftest block-max-test
+  (let [dir        (u/tmp-dir (str "blocks-" (UUID/randomUUID)))
+        lmdb       (l/open-kv dir)
+        engine     ^SearchEngine (sut/new-search-engine lmdb)
+        terms-dbi  (.-terms-dbi engine)
+        blocks-dbi (.-blocks-dbi engine)
+        weight     (fn [term block]
+                     (let [[tid] (l/get-value lmdb terms-dbi term
+                                              :string :term-info true)]
+                       (l/get-value lmdb blocks-dbi [tid block]
+                                    :int-int :double)))
+        max-weight (fn [term]
+                     (nth (l/get-value lmdb terms-dbi term
+                                       :string :term-info true)
+                          1))]
+    (dotimes [i 3000]
+      (sut/add-doc engine i (case (long i)
+                              100  "apple"
+                              2100 "apple banana"
+                              2900 "banana"
+                              "apple banana cherry")))
+    (is (== 1.0 (weight "apple" 0)))
+    (is (== 0.5 (weight "apple" 2)))
+    (is (== 1.0 (weight "banana" 2)))
+    (is (< (weight "cherry" 1) 0.5))
+
+    (is (= [100] (sut/search engine "apple" {:top 1})))
+    (is (= [2900] (sut/search engine "banana" {:top 1})))
+    (is (= 2100 (first (sut/search engine "apple banana" {:top 3}))))
+
+    (is (== 1.0 (max-weight "apple")))
+
+    (sut/remove-doc engine 100)
+    (is (== 0.5 (weight "apple" 2)))
+    (is (< (weight "apple" 0) 0.5))
+    (is (== 0.5 (max-weight "apple")))
+    (is (= [2100] (sut/search engine "apple" {:top 1})))
+
+    (sut/remove-doc engine 2100)
+    (is (< (weight "apple" 2) 0.5))
+    (is (== (weight "apple" 0) (max-weight "apple")))
+    (is (== 1.0 (max-weight "banana")))
+    (is (= [2900] (sut/search engine "banana" {:top 1})))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
+(deftest snapshot-test
+  (let [dir          (u/tmp-dir (str "snapshot-" (UUID/randomUUID)))
+        lmdb         (l/open-kv dir)
+        engine       ^SearchEngine (sut/new-search-engine lmdb)
+        journal-dbi  (.-journal-dbi engine)
+        snapshot-dbi (.-snapshot-dbi engine)]
+    (add-docs sut/add-doc engine)
+    (is (< 0 (l/entries lmdb journal-dbi)))
+
+    (sut/snapshot engine)
+    (is (= 0 (l/entries lmdb journal-dbi)))
+    (is (= 6 (l/range-count lmdb snapshot-dbi [:all] :int-int)))
+
+    (sut/remove-doc engine :doc1)
+    (sut/add-doc engine :doc6 "The sleepy red fox.")
+    (is (= 3 (l/entries lmdb journal-dbi)))
+
+    (let [engine1 ^SearchEngine (sut/new-search-engine lmdb)]
+      (is (= (sut/doc-count engine1) 5))
+      (is (= (.-docs engine1) (.-docs engine)))
+      (is (= (map #(.get ^ConcurrentShortArray (.-norms engine1) (int %))
+                  (keys (.-docs engine1)))
+             (map #(.get ^ConcurrentShortArray (.-norms engine) (int %))
+                  (keys (.-docs engine)))))
+      (is (= (.-terms engine1) (.-terms engine)))
+      (is (= (.get ^AtomicInteger (.-max-doc engine1)) 6))
+      (is (= (sut/search engine1 "red fox")
+             (sut/search engine "red fox")
+             [:doc6 :doc4 :doc2 :doc5]))
+
+      (sut/add-doc engine1 :doc7 "A lazy fox.")
+      (let [engine2 (sut/new-search-engine lmdb)]
+        (is (= (sut/search engine2 "lazy fox") [:doc7 :doc6]))))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
+(deftest result-cache-test
+  (let [dir    (u/tmp-dir (str "result-cache-" (UUID/randomUUID)))
+        lmdb   (l/open-kv dir)
+        engine (sut/new-search-engine lmdb {:result-cache-size 2000})]
+    (is (nil? (sut/result-cache-stats (sut/new-search-engine
+                                        lmdb {:domain "nocache"}))))
+    (add-docs sut/add-doc engine)
+    (is (= (sut/search engine "red fox") [:doc1 :doc4 :doc2 :doc5]))
+    (is (= (sut/search engine "Fox RED") [:doc1 :doc4 :doc2 :doc5]))
+    (is (= {:hits 1 :misses 1 :entries 1}
+           (select-keys (sut/result-cache-stats engine)
+                        [:hits :misses :entries])))
+    (is (= (sut/search engine "red fox" {:top 1}) [:doc1]))
+    (is (= 2 (:misses (sut/result-cache-stats engine))))
+
+    (sut/remove-doc engine :doc1)
+    (is (= (sut/search engine "red fox") [:doc4 :doc2 :doc5]))
+    (is (= 3 (:misses (sut/result-cache-stats engine))))
+
+    (dotimes [i 10] (sut/search engine (str "fox " i)))
+    (let [{:keys [bytes capacity evictions hit-ratio]}
+          (sut/result-cache-stats engine)]
+      (is (<= bytes capacity))
+      (is (< 0 evictions))
+      (is (< 0.0 hit-ratio 1.0)))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
+(deftest concurrent-search-test
+  (let [dir    (u/tmp-dir (str "concurrent-search-" (UUID/randomUUID)))
+        lmdb   (l/open-kv dir)
+        engine (sut/new-search-engine lmdb {:segment-size 16})
+        n      2000
+        done?  (volatile! false)
+        reader (future
+                 (loop [searches 0]
+                   (if @done?
+                     searches
+                     (do (doseq [ref (sut/search engine "red fox" {:top 5})]
+                           (assert (int? ref)))
+                         (recur (inc searches))))))]
+    (dotimes [i n]
+      (sut/add-doc engine i (str "The quick red fox " i))
+      (when (zero? (mod i 3))
+        (sut/remove-doc engine (quot i 2))))
+    (vreset! done? true)
+    (is (< 0 @reader))
+    (is (= (sut/doc-count engine) (count (sut/search engine "fox"
+                                                      {:top n}))))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
 (deftest search-143-test
   (let [dir           (u/tmp-dir (str "search-143-" (UUID/randomUUID)))
         lmdb          (l/open-kv dir)
@@ -240,6 +553,38 @@
     (l/close-kv lmdb)
     (u/delete-files dir)))
 
+(deftest federated-search-test
+  (let [dir     (u/tmp-dir (str "search-federated" (UUID/randomUUID)))
+        lmdb    (l/open-kv dir)
+        engine1 ^SearchEngine (sut/new-search-engine lmdb)
+        engine2 ^SearchEngine (sut/new-search-engine
+                                lmdb {:domain "another"})
+        engines {:planets engine1 :stories engine2}]
+    (sut/add-doc engine1 1 "hello world")
+    (sut/add-doc engine1 2 "Mars is a red planet")
+    (sut/add-doc engine1 3 "Earth is a blue planet")
+    (add-docs sut/add-doc engine2)
+
+    (is (empty? (sut/federated-search engines "solar")))
+    (is (empty? (sut/federated-search engines "")))
+    (is (= (sut/federated-search engines "mary moby")
+           [[:stories :doc3] [:stories :doc2]]))
+    (is (= (set (sut/federated-search engines "planet"))
+           #{[:planets 2] [:planets 3]}))
+    (is (= (sut/federated-search engines "cap" {:display :offsets})
+           [[:stories :doc4 [["cap" [51]]]]]))
+    (let [res (sut/federated-search engines "red fox")]
+      (is (= (first res) [:stories :doc1]))
+      (is (= (set res) #{[:stories :doc1] [:stories :doc2] [:stories :doc4]
+                         [:stories :doc5] [:planets 2]})))
+    (is (= (sut/federated-search engines "red fox" {:top 1})
+           [[:stories :doc1]]))
+    (is (= 3 (count (sut/federated-search engines "red fox" {:top 3}))))
+    (is (thrown-with-msg? Exception #"local search engines"
+                          (sut/federated-search {:bad :engine} "red")))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
 (deftest search-kv-test
   (let [dir    (u/tmp-dir (str "search-kv-" (UUID/randomUUID)))
         lmdb   (l/open-kv dir)
@@ -319,6 +664,53 @@
     (d/close conn)
     (u/delete-files dir)))
 
+(deftest async-fulltext-test
+  (let [dir    (u/tmp-dir (str "async-fulltext-" (UUID/randomUUID)))
+        schema {:a/id     {:db/valueType :db.type/long
+                           :db/unique    :db.unique/identity}
+                :a/string {:db/valueType :db.type/string
+                           :db/fulltext  true}}
+        conn   (d/create-conn dir schema {:async-fulltext? true})
+        q      '[:find [?e ...]
+                 :in $ ?q
+                 :where [(fulltext $ ?q) [[?e ?a ?v]]]]]
+    (d/transact! conn (for [i (range 1 201)]
+                        {:a/id i :a/string (str "fox number " i)}))
+    (is (d/await-fulltext conn))
+    (is (= 200 (count (d/q q (d/db conn) "fox"))))
+    (d/transact! conn [[:db/retractEntity [:a/id 1]]
+                       {:a/id 2 :a/string "lazy dog"}])
+    (let [tx (:max-tx (d/db conn))]
+      (is (d/await-fulltext conn tx 10000)))
+    (is (= 198 (count (d/q q (d/db conn) "fox"))))
+    (is (= [2] (d/q q (d/db conn) "dog")))
+    (d/with-transaction [cn conn]
+      (d/transact! cn [{:a/id 400 :a/string "slow green turtle"}]))
+    (is (d/await-fulltext conn))
+    (is (= 1 (count (d/q q (d/db conn) "turtle"))))
+    (d/transact! conn [{:a/id 300 :a/string "quick brown fox"}])
+    (d/close conn)
+    (let [conn (d/create-conn dir schema {:async-fulltext? true})
+          e300 (d/q '[:find ?e . :where [?e :a/id 300]] (d/db conn))]
+      (is (d/await-fulltext conn))
+      (is (= 199 (count (d/q q (d/db conn) "fox"))))
+      (d/close conn)
+      ;; changes left in the queue after being indexed are replayed
+      (let [lmdb (l/open-kv dir)]
+        (l/open-dbi lmdb c/fulltext-queue {:key-size c/+id-bytes+})
+        (l/transact-kv
+          lmdb [[:put c/fulltext-queue 1
+                 [0 :a (d/datom e300 :a/string "quick brown fox")] :id :data]
+                [:put c/fulltext-queue 2
+                 [0 :d (d/datom 1 :a/string "fox number 1")] :id :data]])
+        (l/close-kv lmdb))
+      (let [conn (d/create-conn dir schema)]
+        (is (d/await-fulltext conn))
+        (is (= 199 (count (d/q q (d/db conn) "fox"))))
+        (is (= [e300] (d/q q (d/db conn) "quick")))
+        (d/close conn)))
+    (u/delete-files dir)))
+
 (defn- rows->maps [csv]
   (let [headers (map keyword (first csv))
         rows    (rest csv)]
@@ -462,6 +854,23 @@
     (l/close-kv lmdb)
     (u/delete-files dir)))
 
+(deftest parallel-index-writer-test
+  (let [dir    (u/tmp-dir (str "pwriter-" (UUID/randomUUID)))
+        lmdb   (l/open-kv dir)
+        writer ^IndexWriter (sut/search-index-writer
+                              lmdb {:index-position? true
+                                    :threads         4})]
+    (add-docs sut/write writer)
+    (sut/commit writer)
+
+    (let [engine (sut/new-search-engine lmdb)]
+      (is (= (sut/doc-count engine) 5))
+      (is (= [:doc1 :doc4 :doc2 :doc5] (sut/search engine "red cat")))
+      (is (= (sut/search engine "cap" {:display :offsets})
+             [[:doc4 [["cap" [51]]]]])))
+    (l/close-kv lmdb)
+    (u/delete-files dir)))
+
 ;; TODO double compares are not really reliable
 ;; (def tokens ["b" "c" "d" "e" "f" "g" "h" "i" "j" "k" "l" "m" "n"
 ;;              "o" "p" "q" "r" "s" "t" "u" "v" "w" "x" "y" "z"])
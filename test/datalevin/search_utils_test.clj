@@ -23,6 +23,25 @@
            (cust-analyzer-en s2)
            [["datalevin-analyzers" 3 10] ["test" 4 30]]))))
 
+(deftest stream-analyzer-test
+  (let [s1       "This is a Datalevin-Analyzers test"
+        s2       "  The QUICK red fox, jumped! over the lazy red dogs."
+        analyzer (sut/create-stream-analyzer
+                   {:token-filters [sut/lower-case-stream-filter
+                                    sut/en-stop-words-stream-filter]})]
+    (is (= (analyzer s1) (sc/en-analyzer s1)
+           [["datalevin-analyzers" 3 10] ["test" 4 30]]))
+    (is (= (analyzer s2) (sc/en-analyzer s2)
+           [["quick" 1 6] ["red" 2 12] ["fox" 3 16] ["jumped" 4 21]
+            ["over" 5 29] ["lazy" 7 38] ["red" 8 43] ["dogs" 9 47]]))
+    (is (= [] (analyzer "") (analyzer " , ")))
+    (is (= [["Red" 0 0] ["fox" 1 4]]
+           ((sut/create-stream-analyzer
+              {:separators    "-"
+               :token-filters [(sut/create-stop-words-stream-filter
+                                 ["the"])]})
+            "Red-fox-the")))))
+
 (deftest autocomplete-analyzer-test
   (let [s1               "clock"
         s2               "cloud"
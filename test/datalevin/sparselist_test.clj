@@ -8,7 +8,8 @@
   (:import
    [java.nio ByteBuffer]
    [datalevin.sparselist SparseIntArrayList]
-   [datalevin.utl GrowingIntArray]))
+   [datalevin.utl ChunkedIntArray]
+   [org.roaringbitmap FastRankRoaringBitmap]))
 
 (deftest basic-ops-test
   (let [ssl (sut/sparse-arraylist)]
@@ -20,7 +21,7 @@
     (is (= (sut/size ssl) 4))
     (is (= (sut/select ssl 0) 99))
     (is (= (sut/select ssl 1) 888))
-    (is (= (seq (.toArray ^GrowingIntArray (.-items ^SparseIntArrayList ssl)))
+    (is (= (seq (.toArray ^ChunkedIntArray (.-items ^SparseIntArrayList ssl)))
            [99 888 2 0]))
     (is (nil? (sut/get ssl 99)))
     (is (= (sut/get ssl 42) 99))
@@ -38,6 +39,45 @@
     (is (= ssl (sut/sparse-arraylist {42 99 88 888 2000 0})))
     (is (= (sut/size ssl) 3))))
 
+(deftest copy-concat-test
+  (let [ssl1 (sut/sparse-arraylist {1 10 5 50})
+        ssl2 (sut/sparse-arraylist {8 80 9 90})
+        cp   (sut/copy-list ssl1)
+        cc   (sut/concat-lists [ssl1 ssl2])]
+    (is (= cp ssl1))
+    (is (= cc (sut/sparse-arraylist {1 10 5 50 8 80 9 90})))
+    (is (instance? FastRankRoaringBitmap (.-indices ^SparseIntArrayList cp)))
+    (is (instance? FastRankRoaringBitmap (.-indices ^SparseIntArrayList cc)))
+    (sut/set ssl1 3 30)
+    (sut/remove ssl1 5)
+    (is (= cp (sut/sparse-arraylist {1 10 5 50})))
+    (is (= cc (sut/sparse-arraylist {1 10 5 50 8 80 9 90})))
+    (is (= (sut/get cc 9) 90))
+    ;; copied chunks are trimmed to their contents, and grow again on demand
+    (doseq [i (range 100 2100)] (sut/set cp i i))
+    (is (= (sut/size cp) 2002))
+    (is (= (sut/get cp 5) 50))
+    (is (= (sut/get cp 2099) 2099))
+    (is (= (sut/size cc) 4))))
+
+(test/defspec random-ops-generative-test
+  50
+  (prop/for-all [ks (gen/vector (gen/choose 0 100000) 0 5000)]
+                (let [ssl (sut/sparse-arraylist)
+                      m   (reduce (fn [m k]
+                                    (sut/set ssl k (- k))
+                                    (assoc m k (- k)))
+                                  (sorted-map) ks)
+                      m   (reduce (fn [m k]
+                                    (sut/remove ssl k)
+                                    (dissoc m k))
+                                  m (take-nth 3 (keys m)))]
+                  (and (= (sut/size ssl) (count m))
+                       (= (seq (.toArray ^ChunkedIntArray
+                                         (.-items ^SparseIntArrayList ssl)))
+                          (seq (vals m)))
+                       (every? (fn [[k v]] (= (sut/get ssl k) v)) m)))))
+
 (test/defspec nippy-roundtrip-generative-test
   100
   (prop/for-all [ks (gen/vector gen/int)